@@ -3,11 +3,15 @@ package be.vib.autofocus;
 import ij.CompositeImage;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.gui.DialogListener;
 import ij.gui.GenericDialog;
+import ij.measure.Calibration;
 import ij.measure.Measurements;
 import ij.plugin.PlugIn;
 import ij.plugin.RGBStackMerge;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import ij.process.LUT;
@@ -16,9 +20,14 @@ import java.awt.AWTEvent;
 import java.awt.Checkbox;
 import java.awt.Choice;
 import java.awt.Color;
+import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Benjamin Pavie
@@ -42,6 +51,260 @@ public class Auto_Focus implements PlugIn, DialogListener
   public static final int FLUORESCENT_ONLY=0;
   public static final int WITH_BRIGHTFIELD=1;
   
+  /** Choices of "Merge All Channel": {@link #YES}, {@link #NO} or {@link #BOTH} */
+  public static final String[] MERGE_OPTIONS = {"Yes", "No", "Both"};
+  /** Choices of "Which Channel": {@link #FLUORESCENT_ONLY}, {@link #WITH_BRIGHTFIELD} or {@link #BOTH} */
+  public static final String[] CHANNEL_OPTIONS = {"Only Fluorescent", "With BrightField", "Both"};
+  
+  /** Number of 2x binning levels used to pre-select the best focus planes, 0 to score at full resolution only */
+  private int pyramidDepth = 0;
+  /** Number of pre-selected planes re-scored at full resolution when {@link #pyramidDepth} is set */
+  private int pyramidCandidates = 3;
+  /** Search strategy of the best focus plane: {@link ZSearch#EXHAUSTIVE}, {@link ZSearch#GOLDEN_SECTION} or {@link ZSearch#FIBONACCI} */
+  private int zSearchMethod = ZSearch.EXHAUSTIVE;
+  /** Stride of the coarse samples of the Z search, 0 to choose it from the number of planes */
+  private int zSearchStride = 0;
+  /** Fall back to a full scan when the focus curve looks multimodal */
+  private boolean zSearchSafe = true;
+  /** Half width of the Z window searched around the best plane of the previous timepoint, 0 to search all the planes */
+  private int trackingWindow = 0;
+  /** Relative drop of the best score from one timepoint to the next that widens the tracking window */
+  private double trackingDrop = 0.5;
+  /** Fit of the focus curve around its peak: {@link ZSearch#PARABOLA} or {@link ZSearch#GAUSSIAN} */
+  private int peakFit = ZSearch.PARABOLA;
+  /** Pool the independent timepoints are processed on, <code>null</code> to process them on the calling thread */
+  private ForkJoinPool pool = null;
+  /** Pool shared by the dialog runs, created on the first parallel run */
+  private static ForkJoinPool sharedPool = null;
+  /** Focus curves kept between runs, <code>null</code> to score the planes again on each run */
+  private FocusScoreCache scoreCache = FocusScoreCache.getInstance();
+  /** Receives the output images instead of showing them, <code>null</code> to show them */
+  private List<ImagePlus> outputList = null;
+  /** Radius of the window the focus response is averaged on in the extended depth of field */
+  private int edfRadius = 4;
+  /** Standard deviation of the Gaussian smoothing of the extended depth of field height map, 0 for none */
+  private double edfSmoothing = 2;
+  /** Blend the planes around the smoothed heights of the extended depth of field, instead of taking the nearest one */
+  private boolean edfBlend = true;
+  
+  
+  /** Score the planes on a pyramid level first: every plane is binned by
+   * <code>2^depth</code> and scored, then only the <code>candidates</code>
+   * best planes are scored again at full resolution.
+   * @param depth the number of 2x binning levels, 0 to score every plane at full resolution
+   */
+  public void setPyramidDepth(int depth)
+  {
+    pyramidDepth = Math.max(depth, 0);
+  }
+  
+  public int getPyramidDepth()
+  {
+    return pyramidDepth;
+  }
+  
+  /**
+   * @param candidates the number of planes re-scored at full resolution in pyramid mode
+   * @see #setPyramidDepth(int)
+   */
+  public void setPyramidCandidates(int candidates)
+  {
+    pyramidCandidates = Math.max(candidates, 1);
+  }
+  
+  public int getPyramidCandidates()
+  {
+    return pyramidCandidates;
+  }
+  
+  /** Score only some of the planes to find the best focus plane, assuming a
+   * unimodal focus curve. The pyramid pre-selection is only used with
+   * {@link ZSearch#EXHAUSTIVE}.
+   * @param method {@link ZSearch#EXHAUSTIVE}, {@link ZSearch#GOLDEN_SECTION} or {@link ZSearch#FIBONACCI}
+   * @see ZSearch
+   */
+  public void setZSearchMethod(int method)
+  {
+    zSearchMethod = method;
+  }
+  
+  public int getZSearchMethod()
+  {
+    return zSearchMethod;
+  }
+  
+  /**
+   * @param stride the stride of the coarse samples bracketing the best focus
+   * plane, 0 to take about {@link ZSearch#COARSE_SAMPLES} samples
+   */
+  public void setZSearchStride(int stride)
+  {
+    zSearchStride = Math.max(stride, 0);
+  }
+  
+  public int getZSearchStride()
+  {
+    return zSearchStride;
+  }
+  
+  /**
+   * @param safe score every plane when the coarse samples of the focus curve show more than one peak
+   */
+  public void setZSearchSafe(boolean safe)
+  {
+    zSearchSafe = safe;
+  }
+  
+  public boolean isZSearchSafe()
+  {
+    return zSearchSafe;
+  }
+  
+  /** Track the best focus across time: from the second timepoint on, only the
+   * planes within <code>window</code> of the previous best plane are scored.
+   * The window is doubled until the best plane is not on its edge and its score
+   * did not drop by more than {@link #setTrackingDrop(double) the tracking drop}.
+   * @param window the half width of the Z window, 0 to search all the planes
+   */
+  public void setTrackingWindow(int window)
+  {
+    trackingWindow = Math.max(window, 0);
+  }
+  
+  public int getTrackingWindow()
+  {
+    return trackingWindow;
+  }
+  
+  /**
+   * @param drop the relative drop of the best score, compared to the previous
+   * timepoint, that widens the tracking window
+   * @see #setTrackingWindow(int)
+   */
+  public void setTrackingDrop(double drop)
+  {
+    trackingDrop = drop;
+  }
+  
+  public double getTrackingDrop()
+  {
+    return trackingDrop;
+  }
+  
+  /**
+   * @param fit the fit of the focus curve around its peak giving the sub-plane
+   * best focus position: {@link ZSearch#PARABOLA} or {@link ZSearch#GAUSSIAN}
+   * @see BestFocusStackResult#getSubPlanePositionArray()
+   */
+  public void setPeakFit(int fit)
+  {
+    peakFit = fit;
+  }
+  
+  public int getPeakFit()
+  {
+    return peakFit;
+  }
+  
+  /** Process the timepoints in parallel on a pool. Each timepoint is written
+   * to its own slot of the results, so they do not depend on the scheduling.
+   * The tracking mode stays sequential. The large planes are also scored in
+   * stripes on the pool, see {@link FocusMeasure#getDegreeofFocus(ImageProcessor, FocusMetric, ForkJoinPool)}.
+   * @param pool the pool, <code>null</code> to process the timepoints on the calling thread
+   * @see #setTrackingWindow(int)
+   */
+  public void setForkJoinPool(ForkJoinPool pool)
+  {
+    this.pool = pool;
+  }
+  
+  public ForkJoinPool getForkJoinPool()
+  {
+    return pool;
+  }
+  
+  /** ImageJ creates a new instance of the plugin on each run: the parallel
+   * runs share one pool of {@link Prefs#getThreads()} threads, created on
+   * first use and kept for the session, so the runs leave no threads behind.
+   * @return the shared pool
+   */
+  public static synchronized ForkJoinPool getSharedForkJoinPool()
+  {
+    if(sharedPool==null)
+      sharedPool = new ForkJoinPool(Prefs.getThreads());
+    return sharedPool;
+  }
+  
+  /** Reuse the focus scores of the planes already scored, on this run or a
+   * previous one on the same image, channel and focus operator.
+   * @param cache the cache, <code>null</code> to score the planes again on each run
+   * @see FocusScoreCache#getInstance()
+   */
+  public void setFocusScoreCache(FocusScoreCache cache)
+  {
+    scoreCache = cache;
+  }
+  
+  public FocusScoreCache getFocusScoreCache()
+  {
+    return scoreCache;
+  }
+  
+  /**
+   * @param radius the radius of the window the focus response is averaged on
+   * in the extended depth of field
+   * @see ExtendedDepthOfField
+   */
+  public void setEdfRadius(int radius)
+  {
+    edfRadius = Math.max(radius, 0);
+  }
+  
+  public int getEdfRadius()
+  {
+    return edfRadius;
+  }
+  
+  /**
+   * @param sigma the standard deviation of the Gaussian smoothing of the extended
+   * depth of field height map, in pixels, 0 for none
+   */
+  public void setEdfSmoothing(double sigma)
+  {
+    edfSmoothing = Math.max(sigma, 0);
+  }
+  
+  public double getEdfSmoothing()
+  {
+    return edfSmoothing;
+  }
+  
+  /**
+   * @param blend blend the two planes around the smoothed height of each pixel of the
+   * extended depth of field, instead of taking the nearest one
+   */
+  public void setEdfBlend(boolean blend)
+  {
+    edfBlend = blend;
+  }
+  
+  public boolean isEdfBlend()
+  {
+    return edfBlend;
+  }
+  
+  /** Collect the output images in a list instead of showing them, e.g. to save them in batch mode.
+   * @param outputList the list receiving the outputs, <code>null</code> to show them
+   */
+  public void setOutputList(List<ImagePlus> outputList)
+  {
+    this.outputList = outputList;
+  }
+  
+  public List<ImagePlus> getOutputList()
+  {
+    return outputList;
+  }
   
   /* (non-Javadoc)
    * @see ij.plugin.PlugIn#run(java.lang.String)
@@ -59,13 +322,11 @@ public class Auto_Focus implements PlugIn, DialogListener
     int channelNr = imp.getNChannels();
     final GenericDialog gd = new GenericDialog("Parameters");
     String[] channelArray = new String[channelNr];
-    String[] yesNoArray = {"Yes", "No", "Both"};
-    String[] channelOptionArray = {"Only Fluorescent", "With BrightField", "Both"};
     
     for(int i=0;i<channelNr;i++)
       channelArray[i]=(i+1)+"";
     gd.addChoice("Select BrigthField Channel: ", channelArray,"1");
-    gd.addChoice("Best Focus Method : ", FocusMeasure.METHODS, FocusMeasure.METHODS[2]);
+    gd.addChoice("Best Focus Method : ", FocusMetrics.getNames(), FocusMeasure.METHODS[FocusMeasure.VOLLATH]);
     gd.addCheckbox("Use Best Plane from Britghfield instead of Projection", false);
     gd.setInsets(0,20,0);
     gd.addChoice("Projection type: ", ZProjector.METHODS, ZProjector.METHODS[1]);
@@ -75,8 +336,21 @@ public class Auto_Focus implements PlugIn, DialogListener
     for(int i=0;i<channelArray.length;i++)
       gd.addCheckbox(channelArray[i], false);
     ((Checkbox)gd.getCheckboxes().get(1)).setEnabled(false);
-    gd.addChoice("Merge All Channel", yesNoArray ,"Both");
-    gd.addChoice("Which Channel", channelOptionArray ,"Both");
+    gd.addChoice("Merge All Channel", MERGE_OPTIONS ,"Both");
+    gd.addChoice("Which Channel", CHANNEL_OPTIONS ,"Both");
+    gd.addCheckbox("Compute tiled focus map of the BrightField", false);
+    gd.addNumericField("Tiles along X", 8, 0);
+    gd.addNumericField("Tiles along Y", 8, 0);
+    gd.addNumericField("Pyramid levels (0 = full resolution)", pyramidDepth, 0);
+    gd.addNumericField("Pyramid candidates", pyramidCandidates, 0);
+    gd.addNumericField("Tracking window (+/- planes, 0 = off)", trackingWindow, 0);
+    gd.addChoice("Z search", ZSearch.METHODS, ZSearch.METHODS[zSearchMethod]);
+    gd.addCheckbox("Full Z scan if the focus curve has several peaks", zSearchSafe);
+    gd.addCheckbox("Process timepoints and large planes in parallel", pool!=null);
+    gd.addCheckbox("Extended depth of field of the BrightField", false);
+    gd.addNumericField("EDF window radius", edfRadius, 0);
+    gd.addNumericField("EDF height map smoothing (sigma)", edfSmoothing, 1);
+    gd.addCheckbox("Focus-weighted projection of the fluorescent channels (per tile)", false);
     gd.addDialogListener(this);
     gd.showDialog();
     if (gd.wasCanceled())
@@ -90,38 +364,159 @@ public class Auto_Focus implements PlugIn, DialogListener
       Vector<Checkbox> checkBoxVector = (Vector<Checkbox>) gd.getCheckboxes();
       ArrayList<Integer> fluorescentChannelArrayList = new ArrayList<Integer>();
       boolean useBestFocusInsteadOfProjection=checkBoxVector.get(0).getState();
-      for (int i=1; i<checkBoxVector.size(); i++)
+      for (int i=1; i<=channelNr; i++)
       {
         if(checkBoxVector.get(i).getState())
           fluorescentChannelArrayList.add(i);
       }
+      boolean computeFocusMap = checkBoxVector.get(channelNr+1).getState();
+      setZSearchSafe(checkBoxVector.get(channelNr+2).getState());
+      boolean parallel = checkBoxVector.get(channelNr+3).getState();
+      boolean computeEDF = checkBoxVector.get(channelNr+4).getState();
+      boolean computeWeighted = checkBoxVector.get(channelNr+5).getState();
+      setForkJoinPool(parallel?getSharedForkJoinPool():null);
+      int tilesX = (int)gd.getNextNumber();
+      int tilesY = (int)gd.getNextNumber();
+      setPyramidDepth((int)gd.getNextNumber());
+      setPyramidCandidates((int)gd.getNextNumber());
+      setTrackingWindow((int)gd.getNextNumber());
+      setEdfRadius((int)gd.getNextNumber());
+      setEdfSmoothing(gd.getNextNumber());
       int degreeofFocusMethod = gd.getNextChoiceIndex();
       int projectionMethod = gd.getNextChoiceIndex();
       int mergeChannel = gd.getNextChoiceIndex();
       int channelOption = gd.getNextChoiceIndex();
+      setZSearchMethod(gd.getNextChoiceIndex());
       
-      BestFocusStackResult resultBrightfield=null;
-      
-      if(mergeChannel==BOTH && channelOption == BOTH)
-      {
-        resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, YES, FLUORESCENT_ONLY, useBestFocusInsteadOfProjection, resultBrightfield);
-        resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, YES, WITH_BRIGHTFIELD, useBestFocusInsteadOfProjection, resultBrightfield);
-        resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, NO, FLUORESCENT_ONLY, useBestFocusInsteadOfProjection, resultBrightfield);
-        resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, NO, WITH_BRIGHTFIELD, useBestFocusInsteadOfProjection, resultBrightfield);
-      }
-      else if(mergeChannel==BOTH)
-      {
-        resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, YES, channelOption, useBestFocusInsteadOfProjection, resultBrightfield);
-        resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, NO, channelOption, useBestFocusInsteadOfProjection, resultBrightfield);
-      }
-      else if(channelOption==BOTH)
+      generateOutputs(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, 
+          mergeChannel, channelOption, useBestFocusInsteadOfProjection);
+      if(computeFocusMap && tilesX>0 && tilesY>0)
+        output(generateFocusMap(imp, brightfieldChannel, degreeofFocusMethod, tilesX, tilesY));
+      if(computeEDF)
       {
-        resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, mergeChannel, FLUORESCENT_ONLY, useBestFocusInsteadOfProjection, resultBrightfield);
-        resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, mergeChannel, WITH_BRIGHTFIELD, useBestFocusInsteadOfProjection, resultBrightfield);
+        BestFocusEDFResult edf = generateExtendedDepthOfField(imp, brightfieldChannel, degreeofFocusMethod);
+        output(edf.getComposite());
+        output(edf.getHeightMap());
       }
-      else
-        resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, mergeChannel, channelOption, useBestFocusInsteadOfProjection, resultBrightfield);
+      if(computeWeighted && !fluorescentChannelArrayList.isEmpty())
+        output(generateFocusWeightedProjection(imp, brightfieldChannel, fluorescentChannelArrayList, degreeofFocusMethod, tilesX, tilesY));
+    }
+  }
+
+  /**Generate the outputs selected in the dialog: the projections of the fluorescent
+   * channels, merged or not, with or without the best focus brightfield.
+   * The outputs are shown, or added to the output list if one is set.
+   * @param imp : the original hyperstack (XYZT)
+   * @param fluorescentChannelArrayList : the list of selected fluorescent channel number
+   * @param brightfieldChannel : the brightfield channel number
+   * @param projectionMethod : the Z-Projection method of the fluorescent channels
+   * @param degreeofFocusMethod : the index of the focus operator in {@link FocusMetrics}
+   * @param mergeChannel : {@link #YES}, {@link #NO} or {@link #BOTH}
+   * @param channelOption : {@link #FLUORESCENT_ONLY}, {@link #WITH_BRIGHTFIELD} or {@link #BOTH}
+   * @param useBestFocusInsteadOfProjection : take the best focus plane of the brightfield instead of the projection
+   * @return the best focus brightfield, <code>null</code> if it was not needed
+   * @see #setOutputList(List)
+   */
+  public BestFocusStackResult generateOutputs(ImagePlus imp, ArrayList<Integer> fluorescentChannelArrayList, int brightfieldChannel, 
+      int projectionMethod, int degreeofFocusMethod, int mergeChannel, int channelOption, boolean useBestFocusInsteadOfProjection)
+  {
+    BestFocusStackResult resultBrightfield=null;
+    //The projections are shared by all the outputs
+    ProjectionPlan plan = new ProjectionPlan(this, imp);
+    
+    if(mergeChannel==BOTH && channelOption == BOTH)
+    {
+      resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, YES, FLUORESCENT_ONLY, useBestFocusInsteadOfProjection, resultBrightfield, plan);
+      resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, YES, WITH_BRIGHTFIELD, useBestFocusInsteadOfProjection, resultBrightfield, plan);
+      resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, NO, FLUORESCENT_ONLY, useBestFocusInsteadOfProjection, resultBrightfield, plan);
+      resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, NO, WITH_BRIGHTFIELD, useBestFocusInsteadOfProjection, resultBrightfield, plan);
+    }
+    else if(mergeChannel==BOTH)
+    {
+      resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, YES, channelOption, useBestFocusInsteadOfProjection, resultBrightfield, plan);
+      resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, NO, channelOption, useBestFocusInsteadOfProjection, resultBrightfield, plan);
+    }
+    else if(channelOption==BOTH)
+    {
+      resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, mergeChannel, FLUORESCENT_ONLY, useBestFocusInsteadOfProjection, resultBrightfield, plan);
+      resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, mergeChannel, WITH_BRIGHTFIELD, useBestFocusInsteadOfProjection, resultBrightfield, plan);
+    }
+    else
+      resultBrightfield = generateMIPBrightFieldStack(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod, mergeChannel, channelOption, useBestFocusInsteadOfProjection, resultBrightfield, plan);
+    return resultBrightfield;
+  }
+
+  /**Compute the tiled focus map of the brightfield, falling back to
+   * {@link FocusMeasure#TENENGRAD} for the focus operators without a per-pixel response.
+   * @param imp : the original hyperstack (XYZT)
+   * @param brightfieldChannel : the brightfield channel number
+   * @param degreeofFocusMethod : the index of the focus operator in {@link FocusMetrics}
+   * @param tilesX : the number of tiles along X
+   * @param tilesY : the number of tiles along Y
+   * @return the height map
+   * @see #computeAutoFocusMap(ImagePlus, int, FocusMetric, int, int)
+   */
+  public ImagePlus generateFocusMap(ImagePlus imp, int brightfieldChannel, int degreeofFocusMethod, int tilesX, int tilesY)
+  {
+    FocusMetric metric = FocusMetrics.get(degreeofFocusMethod);
+    if(!FocusMeasure.hasFocusResponse(metric))
+    {
+      IJ.log(metric.getName()+" has no per-pixel focus response, "+FocusMeasure.METHODS[FocusMeasure.TENENGRAD]+" is used for the focus map");
+      metric = FocusMetrics.get(FocusMeasure.TENENGRAD);
     }
+    return computeAutoFocusMap(imp, brightfieldChannel, metric, tilesX, tilesY).getHeightMap();
+  }
+
+  /**Compute the extended depth of field of the brightfield, falling back to
+   * {@link FocusMeasure#TENENGRAD} for the focus operators without a per-pixel response.
+   * @param imp : the original hyperstack (XYZT)
+   * @param brightfieldChannel : the brightfield channel number
+   * @param degreeofFocusMethod : the index of the focus operator in {@link FocusMetrics}
+   * @return the composite and the height map
+   * @see #computeExtendedDepthOfField(ImagePlus, int, FocusMetric)
+   */
+  public BestFocusEDFResult generateExtendedDepthOfField(ImagePlus imp, int brightfieldChannel, int degreeofFocusMethod)
+  {
+    FocusMetric metric = FocusMetrics.get(degreeofFocusMethod);
+    if(!FocusMeasure.hasFocusResponse(metric))
+    {
+      IJ.log(metric.getName()+" has no per-pixel focus response, "+FocusMeasure.METHODS[FocusMeasure.TENENGRAD]+" is used for the extended depth of field");
+      metric = FocusMetrics.get(FocusMeasure.TENENGRAD);
+    }
+    return computeExtendedDepthOfField(imp, brightfieldChannel, metric);
+  }
+
+  /**Compute the focus-weighted projection of the fluorescent channels, falling back
+   * to {@link FocusMeasure#TENENGRAD} for the focus operators without a per-pixel
+   * response when the planes are tiled.
+   * @param imp : the original hyperstack (XYZT)
+   * @param brightfieldChannel : the brightfield channel number
+   * @param fluorescentChannelList : the fluorescent channel numbers
+   * @param degreeofFocusMethod : the index of the focus operator in {@link FocusMetrics}
+   * @param tilesX : the number of tiles along X, 1 to weight whole planes
+   * @param tilesY : the number of tiles along Y, 1 to weight whole planes
+   * @return the projections (XYCT)
+   * @see #computeFocusWeightedProjection(ImagePlus, int, List, FocusMetric, int, int)
+   */
+  public ImagePlus generateFocusWeightedProjection(ImagePlus imp, int brightfieldChannel, List<Integer> fluorescentChannelList,
+      int degreeofFocusMethod, int tilesX, int tilesY)
+  {
+    FocusMetric metric = FocusMetrics.get(degreeofFocusMethod);
+    if(tilesX*tilesY>1 && !FocusMeasure.hasFocusResponse(metric))
+    {
+      IJ.log(metric.getName()+" has no per-pixel focus response, "+FocusMeasure.METHODS[FocusMeasure.TENENGRAD]+" is used for the focus weights");
+      metric = FocusMetrics.get(FocusMeasure.TENENGRAD);
+    }
+    return computeFocusWeightedProjection(imp, brightfieldChannel, fluorescentChannelList, metric, tilesX, tilesY);
+  }
+
+  /** Show an output image, or add it to the output list if one is set. */
+  private void output(ImagePlus result)
+  {
+    if(outputList!=null)
+      outputList.add(result);
+    else
+      result.show();
   }
 
   /* (non-Javadoc)
@@ -173,6 +568,19 @@ public class Auto_Focus implements PlugIn, DialogListener
   public BestFocusStackResult generateMIPBrightFieldStack(ImagePlus imp, ArrayList<Integer> fluorescentChannelList, 
       int brightfieldChannel, int zProjectionMethod, int degreeofFocusMethod, int mergeChannel, 
       int channelOption, boolean useBestFocusInsteadOfProjection, BestFocusStackResult resultBrightfield)
+  {
+    return generateMIPBrightFieldStack(imp, fluorescentChannelList, brightfieldChannel, zProjectionMethod, degreeofFocusMethod, 
+        mergeChannel, channelOption, useBestFocusInsteadOfProjection, resultBrightfield, new ProjectionPlan(this, imp));
+  }
+  
+  /**Same as {@link #generateMIPBrightFieldStack(ImagePlus, ArrayList, int, int, int, int, int, boolean, BestFocusStackResult)},
+   * taking the projections of the fluorescent channels from a plan shared by the outputs of the run,
+   * so each of them is computed once.
+   * @param plan : the projections shared by the outputs
+   */
+  public BestFocusStackResult generateMIPBrightFieldStack(ImagePlus imp, ArrayList<Integer> fluorescentChannelList, 
+      int brightfieldChannel, int zProjectionMethod, int degreeofFocusMethod, int mergeChannel, 
+      int channelOption, boolean useBestFocusInsteadOfProjection, BestFocusStackResult resultBrightfield, ProjectionPlan plan)
   {
     ImagePlus brightfieldImp = null;
     int[] bestFocusPositionArray = null;
@@ -194,6 +602,10 @@ public class Auto_Focus implements PlugIn, DialogListener
     }
     //2. Keep the LUT
     LUT[] lutArray = imp.getLuts();    
+    int fluorescentMethod = useBestFocusInsteadOfProjection?ProjectionPlan.BEST_PLANE:zProjectionMethod;
+    for (int i=0; i< fluorescentChannelList.size(); i++)
+      plan.add(fluorescentChannelList.get(i), fluorescentMethod);
+    plan.execute(bestFocusPositionArray);
     //3. For each selected fluorescent channel, compute the Maximum intensity 
     //   projection and create a new Stack with 1st channel is the MIP then 2nd
     //   channel is the best focus brightfield and display them
@@ -209,11 +621,7 @@ public class Auto_Focus implements PlugIn, DialogListener
             impArray = new ImagePlus[2]; 
           //ImagePlus[] impArray = new ImagePlus[2];
           int mipChannel= fluorescentChannelList.get(i);
-          System.out.println("MIP on channel :"+mipChannel);
-          if(useBestFocusInsteadOfProjection)
-            impArray[0]=getZFromIndex(imp, mipChannel,bestFocusPositionArray);
-          else
-            impArray[0]=getZProjection(imp, mipChannel, zProjectionMethod);
+          impArray[0]=plan.get(mipChannel, fluorescentMethod, bestFocusPositionArray);
           ImagePlus result;
           if(channelOption!=FLUORESCENT_ONLY)
           {
@@ -232,13 +640,13 @@ public class Auto_Focus implements PlugIn, DialogListener
             projImageComp.setChannelLut(LUT.createLutFromColor(Color.GRAY), 2);
             projImageComp.setTitle("BrightField and Channel "+fluorescentChannelList.get(i));
             projImageComp.setMode(CompositeImage.COMPOSITE);
-            projImageComp.show();
+            output(projImageComp);
           }
           else
           {
             //System.out.println("Set for channel "+i+ " LUT "+(mipChannel-1));
             result.setTitle("Channel "+fluorescentChannelList.get(i));
-            result.show();
+            output(result);
             //result.getStack().setColorModel(lutArray[mipChannel-1]);
             result.getProcessor().setLut(lutArray[mipChannel-1]);
             result.updateAndDraw();
@@ -254,14 +662,20 @@ public class Auto_Focus implements PlugIn, DialogListener
         for (int i=0; i< fluorescentChannelList.size(); i++)
         {
           int mipChannel= fluorescentChannelList.get(i);
-          System.out.println("MIP on channel :"+mipChannel);
-          if(useBestFocusInsteadOfProjection)
-            impArray[i]=getZFromIndex(imp, mipChannel,bestFocusPositionArray);
-          else
-            impArray[i]=getZProjection(imp, mipChannel, zProjectionMethod);
+          impArray[i]=plan.get(mipChannel, fluorescentMethod, bestFocusPositionArray);
         }
         if(channelOption!=FLUORESCENT_ONLY)
           impArray[fluorescentChannelList.size()]=brightfieldImp.duplicate();
+        //A single channel has nothing to merge with: it is output as the unmerged branch does
+        if(impArray.length<2)
+        {
+          ImagePlus result = impArray[0];
+          result.setTitle("Channel "+fluorescentChannelList.get(0));
+          output(result);
+          result.getProcessor().setLut(lutArray[fluorescentChannelList.get(0)-1]);
+          result.updateAndDraw();
+          return resultBrightfield;
+        }
         ImagePlus result = RGBStackMerge.mergeChannels(impArray,false);
         CompositeImage projImageComp = new CompositeImage(result);
         String title= "";
@@ -284,13 +698,13 @@ public class Auto_Focus implements PlugIn, DialogListener
         if(channelOption!=FLUORESCENT_ONLY)
           projImageComp.setChannelLut(LUT.createLutFromColor(Color.GRAY), fluorescentChannelList.size()+1);
         projImageComp.setMode(CompositeImage.COMPOSITE);
-        projImageComp.show();
+        output(projImageComp);
         
       }
     }
     else if(channelOption!=FLUORESCENT_ONLY)
     {
-      brightfieldImp.show();
+      output(brightfieldImp);
       brightfieldImp.getProcessor().setLut(LUT.createLutFromColor(Color.GRAY));
       brightfieldImp.updateAndDraw();
     }
@@ -313,6 +727,7 @@ public class Auto_Focus implements PlugIn, DialogListener
     projector = new ZProjector(imp);
     projector.setStopSlice(imp.getNSlices());
     projector.setMethod(method);
+    projector.setForkJoinPool(pool);
     channelArray = new int[1];
     channelArray[0]=selectedChannel;
     projector.doHyperStackProjection(true, channelArray);
@@ -322,14 +737,20 @@ public class Auto_Focus implements PlugIn, DialogListener
     return projImage;
   }
   
-  public ImagePlus getZFromIndex(ImagePlus imp, int selectedChannel,int[] indexArray)
+  /**From a multiple channel Hyperstack, get the selected channel and return
+   * the given Z slice of each timepoint. Only these slices are copied.
+   * @param imp : the original hyperstack (XYZT)
+   * @param selectedChannel : the channel number
+   * @param indexArray : the Z position (0-based) of each timepoint, as in {@link BestFocusStackResult#getPositionArray()}
+   * @return the XYT stack of the selected slices
+   */
+  public ImagePlus getZFromIndex(ImagePlus imp, final int selectedChannel, final int[] indexArray)
   {
     int tNumber = -1;
     int width=-1;
     int height = -1;
     int bitdepth = -1;
     ImagePlus stack;
-    ImageProcessor lastIP=null;
     
     tNumber = imp.getNFrames();
     width = imp.getWidth();
@@ -348,24 +769,16 @@ public class Auto_Focus implements PlugIn, DialogListener
         tNumber,
         bitdepth);  
     
-    for(int t=1;t<=tNumber;t++)
-    {
-      System.out.print("For time "+t+", ");
-      ImageProcessor bestIp;
-      IJ.showProgress(t, tNumber);
-      int index = imp.getStackIndex(selectedChannel, indexArray[t-1], t);
-      imp.setSliceWithoutUpdate(index);
-      bestIp = imp.getProcessor().duplicate();      
-      stack.setPositionWithoutUpdate(1, 1, t);
-      stack.setProcessor(bestIp);
-      if(t==tNumber-1)
-        lastIP=bestIp;
-    }
-    //Weird hack since the last slice is not properly added
-    //Remove the last slice that is black (empty)
-    stack.getStack().deleteLastSlice();
-    //Replace it with the last slice (which was supposed to be set at line stack.setProcessor(bestIp);)
-    stack.getStack().addSlice(lastIP);
+    final HyperstackView view = new HyperstackView(imp);
+    final ImageStack outStack = stack.getStack();
+    forEachTimepoint(tNumber, new Timepoint() {
+      @Override
+      public void process(int t)
+      {
+        System.out.print("For time "+t+", ");
+        outStack.setPixels(view.copyProcessor(selectedChannel, indexArray[t-1]+1, t).getPixels(), t);
+      }
+    }, true);
     stack.setPositionWithoutUpdate(1, 1, 1);    
     stack.setCalibration(imp.getCalibration());
     
@@ -379,24 +792,37 @@ public class Auto_Focus implements PlugIn, DialogListener
    * across Z that have the highest mean intensity
    * @param imp : the original hyperstack (XYZT)
    * @param selectedChannel : the brightfield channel number
+   * @param degreeofFocusMethod : the index of the focus operator in {@link FocusMetrics}
    * @return the best focus stack across time of the selected channel stack XYT
    */
   public BestFocusStackResult computeAutoFocusStack(ImagePlus imp, int selectedChannel, int degreeofFocusMethod)
   {
-    int zNumber = -1;
+    return computeAutoFocusStack(imp, selectedChannel, FocusMetrics.get(degreeofFocusMethod));
+  }
+
+  /**From a multiple channel Hyperstack, get the selected channel and return
+   * the best autofocus Z slices accross time.
+   * @param imp : the original hyperstack (XYZT)
+   * @param selectedChannel : the brightfield channel number
+   * @param metric : the focus operator
+   * @return the best focus stack across time of the selected channel stack XYT,
+   * with the best focus position, its sub-plane estimate and the focus curve of each timepoint
+   */
+  public BestFocusStackResult computeAutoFocusStack(final ImagePlus imp, final int selectedChannel, final FocusMetric metric)
+  {
     int tNumber = -1;
     int width=-1;
     int height = -1;
     int bitdepth = -1;
     ImagePlus stack;
-    ImageProcessor[] ipArray;
-    ImageProcessor lastIP=null;
     
     BestFocusStackResult resultStack = new BestFocusStackResult();
     
-    int[] bestPositionArray= new int[imp.getNFrames()];
+    final int[] bestPositionArray= new int[imp.getNFrames()];
+    final double[] subPlanePositionArray = new double[imp.getNFrames()];
+    final double[][] focusCurves = new double[imp.getNFrames()][imp.getNSlices()];
     
-    zNumber = imp.getNSlices();
+    final int zNumber = imp.getNSlices();
     tNumber = imp.getNFrames();
     width = imp.getWidth();
     height = imp.getHeight();
@@ -412,71 +838,453 @@ public class Auto_Focus implements PlugIn, DialogListener
         1,
         tNumber,
         bitdepth);    
-    ipArray = new ImageProcessor[zNumber];
-    for(int t=1;t<=tNumber;t++)
-    {
-      System.out.print("For time "+t+", ");
-      ImageProcessor bestIp;
-      IJ.showProgress(t, tNumber);
-      for(int z=1;z<=zNumber;z++) 
+    final HyperstackView view = new HyperstackView(imp);
+    final ImageStack outStack = stack.getStack();
+    final double[][] cachedCurves = scoreCache==null?null:
+      scoreCache.getCurves(imp, selectedChannel, metric, new Rectangle(0, 0, width, height));
+    //The coarse scores of the pyramid are cached too, so a rerun reads no plane
+    final double[][] cachedCoarse = scoreCache==null || pyramidDepth==0?null:
+      scoreCache.getCurves(imp, selectedChannel, metric, new Rectangle(0, 0, width, height), pyramidDepth);
+    Timepoint timepoint = new Timepoint() {
+      @Override
+      public void process(int t)
       {
-        ImageProcessor ip;
-        int index = imp.getStackIndex(selectedChannel, z, t);
-        imp.setSliceWithoutUpdate(index);
-        ip = imp.getProcessor().duplicate();
-        ipArray[z-1]=ip;
+        System.out.print("For time "+t+", ");
+        double[] curve = focusCurves[t-1];
+        if(cachedCurves!=null)
+          System.arraycopy(cachedCurves[t-1], 0, curve, 0, zNumber);
+        else
+          Arrays.fill(curve, Double.NaN);
+        double[] coarse = cachedCoarse==null?null:cachedCoarse[t-1].clone();
+        BestFocusResult result;
+        if(trackingWindow>0 && t>1)
+        {
+          int previous = bestPositionArray[t-2];
+          result = findBestZFocus(view, selectedChannel, t, metric, curve, coarse, previous, focusCurves[t-2][previous]);
+        }
+        else
+          result = findBestZFocus(view, selectedChannel, t, metric, curve, coarse, -1, Double.NaN);
+        int best = result.getPosition();
+        bestPositionArray[t-1]=best;
+        subPlanePositionArray[t-1]=ZSearch.interpolatePeak(curve, best, peakFit);
+        if(cachedCurves!=null)
+          System.arraycopy(curve, 0, cachedCurves[t-1], 0, zNumber);
+        if(cachedCoarse!=null)
+          System.arraycopy(coarse, 0, cachedCoarse[t-1], 0, zNumber);
+        //Only the emitted plane is copied
+        outStack.setPixels(result.getIp().duplicate().getPixels(), t);
       }
-      //bestIp = getBestZFocus(ipArray, degreeofFocusMethod, bestPositionArray[t-1]);
-      BestFocusResult result = getBestZFocus(ipArray, degreeofFocusMethod);
-      bestIp = result.getIp();
-      bestPositionArray[t-1]=result.getPosition();
-      
-      stack.setPositionWithoutUpdate(1, 1, t);
-      stack.setProcessor(bestIp);
-      if(t==tNumber-1)
-        lastIP=bestIp;
-    }
-    //Weird hack since the last slice is not properly added
-    //Remove the last slice that is black (empty)
-    stack.getStack().deleteLastSlice();
-    //Replace it with the last slice (which was supposed to be set at line stack.setProcessor(bestIp);)
-    stack.getStack().addSlice(lastIP);
+    };
+    //Tracking needs the best plan of the previous timepoint
+    forEachTimepoint(tNumber, timepoint, trackingWindow==0);
     stack.setPositionWithoutUpdate(1, 1, 1);
     
     resultStack.setStack(stack);
     resultStack.setPositionArray(bestPositionArray);
+    resultStack.setSubPlanePositionArray(subPlanePositionArray);
+    resultStack.setFocusCurves(focusCurves);
     
     return resultStack;
   }
 
+  /**From a multiple channel Hyperstack, get the selected channel and return,
+   * for each timepoint, the extended depth of field composite: each pixel is
+   * taken from the planes where its neighbourhood is the sharpest.
+   * The bands of the planes, and the timepoints, are processed on {@link #pool} if it is set.
+   * @param imp : the original hyperstack (XYZT)
+   * @param selectedChannel : the brightfield channel number
+   * @param metric : a focus operator with a per-pixel response, see {@link FocusMeasure#hasFocusResponse(FocusMetric)}
+   * @return the composite (XYT) and the height map (XYT): the Z slice each pixel is taken from
+   * @see ExtendedDepthOfField
+   */
+  public BestFocusEDFResult computeExtendedDepthOfField(ImagePlus imp, final int selectedChannel, FocusMetric metric)
+  {
+    int tNumber = imp.getNFrames();
+    int width = imp.getWidth();
+    int height = imp.getHeight();
+    final HyperstackView view = new HyperstackView(imp);
+    final ExtendedDepthOfField edf = new ExtendedDepthOfField(metric, edfRadius, edfSmoothing, edfBlend, pool);
+    //Each timepoint sets its own slices
+    final ImageStack compositeStack = new ImageStack(width, height, tNumber);
+    final ImageStack heightStack = new ImageStack(width, height, tNumber);
+    forEachTimepoint(tNumber, new Timepoint() {
+      @Override
+      public void process(int t)
+      {
+        ImageProcessor[] result = edf.process(view, selectedChannel, t);
+        compositeStack.setPixels(result[0].getPixels(), t);
+        heightStack.setPixels(result[1].getPixels(), t);
+      }
+    }, true);
+    ImagePlus composite = new ImagePlus("Extended Depth of Field", compositeStack);
+    ImagePlus heightMap = new ImagePlus("EDF Height Map", heightStack);
+    composite.setDimensions(1, 1, tNumber);
+    heightMap.setDimensions(1, 1, tNumber);
+    composite.setCalibration(imp.getCalibration().copy());
+    heightMap.setCalibration(imp.getCalibration().copy());
+    composite.resetDisplayRange();
+    heightMap.setDisplayRange(1, imp.getNSlices());
+    
+    BestFocusEDFResult result = new BestFocusEDFResult();
+    result.setComposite(composite);
+    result.setHeightMap(heightMap);
+    return result;
+  }
+
+  /**From a multiple channel Hyperstack, project the fluorescent channels of each
+   * timepoint, weighting each Z plane by the focus score of the brightfield plane,
+   * or of its tiles. Each plane is read once: the brightfield is scored in the same
+   * pass as the fluorescent channels are accumulated. The plane scores are read
+   * from and stored in the {@link FocusScoreCache}, with the focus curves of
+   * {@link #computeAutoFocusStack(ImagePlus, int, FocusMetric)}; the tile scores
+   * are computed in a separate pass and not cached.
+   * The timepoints are processed on {@link #pool} if it is set.
+   * @param imp : the original hyperstack (XYZT)
+   * @param brightfieldChannel : the brightfield channel number
+   * @param fluorescentChannelList : the fluorescent channel numbers
+   * @param metric : the focus operator, with a per-pixel response if the planes are tiled
+   * @param tilesX : the number of tiles along X, 1 to weight whole planes
+   * @param tilesY : the number of tiles along Y, 1 to weight whole planes
+   * @return the projections (XYCT)
+   * @see FocusWeightedProjection
+   */
+  public ImagePlus computeFocusWeightedProjection(ImagePlus imp, final int brightfieldChannel, List<Integer> fluorescentChannelList,
+      FocusMetric metric, int tilesX, int tilesY)
+  {
+    int tNumber = imp.getNFrames();
+    final int[] channels = new int[fluorescentChannelList.size()];
+    for(int i=0;i<channels.length;i++)
+      channels[i] = fluorescentChannelList.get(i);
+    final HyperstackView view = new HyperstackView(imp);
+    final FocusWeightedProjection projection = new FocusWeightedProjection(metric, tilesX, tilesY, pool);
+    //Whole planes are weighted by the same focus curves as the best focus search
+    final double[][] cachedCurves = scoreCache==null || tilesX*tilesY>1?null:
+      scoreCache.getCurves(imp, brightfieldChannel, metric, new Rectangle(0, 0, imp.getWidth(), imp.getHeight()));
+    //Each timepoint sets its own slices
+    final ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight(), channels.length*tNumber);
+    forEachTimepoint(tNumber, new Timepoint() {
+      @Override
+      public void process(int t)
+      {
+        double[] curve = cachedCurves==null?null:cachedCurves[t-1].clone();
+        ImageProcessor[] result = projection.process(view, brightfieldChannel, channels, t, curve);
+        if(cachedCurves!=null)
+          System.arraycopy(curve, 0, cachedCurves[t-1], 0, curve.length);
+        for(int c=0;c<channels.length;c++)
+          stack.setPixels(result[c].getPixels(), (t-1)*channels.length+c+1);
+      }
+    }, true);
+    ImagePlus projImage = new ImagePlus("Focus Weighted Projection", stack);
+    projImage.setDimensions(channels.length, 1, tNumber);
+    if(channels.length>1)
+      projImage = new CompositeImage(projImage, CompositeImage.COMPOSITE);
+    else
+      projImage.resetDisplayRange();
+    projImage.setCalibration(imp.getCalibration().copy());
+    return projImage;
+  }
+
+  /**From a multiple channel Hyperstack, get the selected channel and return,
+   * for each tile of a regular grid, the best focus Z plane across time.
+   * The focus response of each plane is computed once, then every tile is
+   * scored in constant time from the summed-area table of the response.
+   * @param imp : the original hyperstack (XYZT)
+   * @param selectedChannel : the brightfield channel number
+   * @param metric : a focus operator with a per-pixel response, see {@link FocusMeasure#hasFocusResponse(FocusMetric)}
+   * @param tilesX : the number of tiles along X
+   * @param tilesY : the number of tiles along Y
+   * @return the best focus position (0-based) and score of each tile, indexed
+   * [t][tileY][tileX], and the height map: an XYT stack of the best Z slice of each tile
+   */
+  public BestFocusMapResult computeAutoFocusMap(ImagePlus imp, int selectedChannel, FocusMetric metric, int tilesX, int tilesY)
+  {
+    int zNumber = imp.getNSlices();
+    int tNumber = imp.getNFrames();
+    int width = imp.getWidth();
+    int height = imp.getHeight();
+    HyperstackView view = new HyperstackView(imp);
+    boolean variance = FocusMeasure.isVarianceOfResponse(metric);
+    
+    float[] response = new float[width*height];
+    double[] integral = new double[(width+1)*(height+1)];
+    double[] integral2 = variance?new double[(width+1)*(height+1)]:null;
+    double[] scores = new double[tilesX*tilesY];
+    int[][][] positionMap = new int[tNumber][tilesY][tilesX];
+    double[][][] scoreMap = new double[tNumber][tilesY][tilesX];
+    ImageStack heightStack = new ImageStack(tilesX, tilesY);
+    
+    for(int t=1;t<=tNumber;t++)
+    {
+      IJ.showProgress(t, tNumber);
+      int[][] positions = positionMap[t-1];
+      double[][] best = scoreMap[t-1];
+      for(int i=0;i<tilesY;i++)
+        Arrays.fill(best[i], Double.NEGATIVE_INFINITY);
+      for(int z=1;z<=zNumber;z++)
+      {
+        ImageProcessor ip = view.getProcessor(selectedChannel, z, t);
+        FocusMeasure.getFocusResponse(ip, metric, response);
+        FocusMeasure.integralImage(response, width, height, integral, integral2);
+        FocusMeasure.getTileScores(integral, integral2, width, height, tilesX, tilesY, scores);
+        for(int i=0;i<tilesY;i++)
+          for(int j=0;j<tilesX;j++)
+            if(scores[i*tilesX+j]>best[i][j])
+            {
+              best[i][j]=scores[i*tilesX+j];
+              positions[i][j]=z-1;
+            }
+      }
+      FloatProcessor heightIp = new FloatProcessor(tilesX, tilesY);
+      for(int i=0;i<tilesY;i++)
+        for(int j=0;j<tilesX;j++)
+          heightIp.setf(j, i, positions[i][j]+1);
+      heightStack.addSlice("t="+t, heightIp);
+    }
+    
+    ImagePlus heightMap = new ImagePlus("Focus Map", heightStack);
+    heightMap.setDimensions(1, 1, tNumber);
+    Calibration calibration = imp.getCalibration().copy();
+    calibration.pixelWidth *= (double)width/tilesX;
+    calibration.pixelHeight *= (double)height/tilesY;
+    heightMap.setCalibration(calibration);
+    heightMap.resetDisplayRange();
+    
+    BestFocusMapResult resultMap = new BestFocusMapResult();
+    resultMap.setHeightMap(heightMap);
+    resultMap.setPositionMap(positionMap);
+    resultMap.setScoreMap(scoreMap);
+    return resultMap;
+  }
+
+  /** Get the best Z-focus plan of one timepoint, searching around the best plan of
+   * the previous timepoint when tracking is on, and score its neighbours to fit the peak.
+   * @param source : the planes of the hyperstack
+   * @param channel : the brightfield channel number
+   * @param t : the timepoint (1-based)
+   * @param metric : the focus operator
+   * @param curve : the focus curve of the timepoint, <code>NaN</code> for the planes not scored yet
+   * @param previous : the best plan (0-based) of the previous timepoint, -1 if there is none
+   * @param previousScore : its score
+   * @return the best plan and its position (0-based)
+   * @see #setTrackingWindow(int)
+   */
+  BestFocusResult findBestZFocus(PlaneSource source, int channel, int t, FocusMetric metric, double[] curve, int previous, double previousScore)
+  {
+    return findBestZFocus(source, channel, t, metric, curve, null, previous, previousScore);
+  }
+
+  /** Get the best Z-focus plan of one timepoint, reusing the coarse scores of
+   * the pyramid from a previous run.
+   * @param coarse : the coarse focus curve of the pyramid, <code>NaN</code> for
+   * the planes not scored yet, filled as the planes are binned and scored;
+   * <code>null</code> to score the binned planes without keeping their scores
+   * @see #findBestZFocus(PlaneSource, int, int, FocusMetric, double[], int, double)
+   * @see #setPyramidDepth(int)
+   */
+  BestFocusResult findBestZFocus(PlaneSource source, int channel, int t, FocusMetric metric, double[] curve, double[] coarse, 
+      int previous, double previousScore)
+  {
+    int last = curve.length-1;
+    BestFocusResult result;
+    if(trackingWindow>0 && previous>=0)
+      result = trackBestZFocus(source, channel, t, metric, curve, coarse, previous, previousScore);
+    else
+      result = getBestZFocus(source, channel, t, metric, curve, coarse, 0, last);
+    int best = result.getPosition();
+    //The neighbours of the best plan are needed to fit the peak
+    for(int z=Math.max(best-1, 0);z<=Math.min(best+1, last);z++)
+      if(Double.isNaN(curve[z]))
+        curve[z] = FocusMeasure.getDegreeofFocus(source, channel, z+1, t, metric, pool);
+    return result;
+  }
+
   //TODO: A much better algorithm should be used it:
   //See for e.g. the following paper http://onlinelibrary.wiley.com/doi/10.1111/j.1365-2818.2010.03389.x/full
   //and see http://www.mathworks.com/matlabcentral/fileexchange/27314-focus-measure/content/fmeasure/fmeasure.m for more possible implementation
-  /** Get the best Z-focus plan by choosing between an array of imageProcessor using multiple methods
-   * @param ipArray the array of image processor
-   * @return the supposedly best focus Z-plan AKA the one with the highest mean intensity
+  /** Get the best Z-focus plan by choosing between the Z planes of one channel and frame of a hyperstack
+   * @param view the planes of the hyperstack
+   * @param channel the channel (1-based)
+   * @param t the frame (1-based)
+   * @param metric the focus operator
+   * @param curve the focus curve: the score of each plane, <code>NaN</code> for the planes not scored yet
+   * @param coarse the coarse focus curve of the pyramid, <code>NaN</code> for the planes not scored yet, or <code>null</code>
+   * @param from the first plane searched (0-based)
+   * @param to the last plane searched
+   * @return the supposedly best focus Z-plan AKA the one with the highest degree of focus
    */
-  private BestFocusResult getBestZFocus(ImageProcessor[] ipArray, int method)
+  private BestFocusResult getBestZFocus(final PlaneSource view, final int channel, final int t, final FocusMetric metric, double[] curve, 
+      double[] coarse, int from, int to)
   {
     BestFocusResult result = new BestFocusResult();
     
-    int best=0;
-    double quality=0;
+    int factor = 1<<pyramidDepth;
+    Rectangle roi = new Rectangle(0, 0, view.getWidth(), view.getHeight());
+    boolean usePyramid = zSearchMethod==ZSearch.EXHAUSTIVE && pyramidDepth>0 && pyramidCandidates<to-from+1 
+        && roi.width/factor>=3 && roi.height/factor>=3;
+    int best=from;
+    double quality=Double.NEGATIVE_INFINITY;
     double measure=0;
-    for(int z = 0; z<ipArray.length; z++)
+    boolean scored = true;
+    for(int z = from; z<=to && scored; z++)
+      scored = !Double.isNaN(curve[z]);
+    if(scored)
+    {
+      //Every plane was scored at full resolution by a previous run: no plane is read
+      for(int z = from; z<=to; z++)
+        if(quality<curve[z])
+        {
+          quality=curve[z];
+          best=z;
+        }
+    }
+    else if(usePyramid)
     {
-      ImageProcessor ipstk = ipArray[z];
-      measure = FocusMeasure.getDegreeofFocus(ipstk, method);
-      if(quality<measure)
+      //Score the binned planes, then re-score the best candidates at full resolution
+      int binnedWidth = roi.width/factor;
+      Rectangle binnedRoi = new Rectangle(0, 0, binnedWidth, roi.height/factor);
+      float[] binned = null;
+      if(coarse==null)
       {
-        quality=measure;
-        best=z;
+        coarse = new double[curve.length];
+        Arrays.fill(coarse, Double.NaN);
+      }
+      //The binned planes scored by a previous run are not read again
+      for(int z = from; z<=to; z++)
+        if(Double.isNaN(coarse[z]))
+        {
+          if(binned==null)
+            binned = new float[binnedRoi.width*binnedRoi.height];
+          FocusMeasure.binPlane(view, channel, z+1, t, factor, binned);
+          coarse[z] = metric.measure(binned, binnedWidth, binnedRoi);
+        }
+      boolean[] selected = new boolean[curve.length];
+      for(int k = 0; k<pyramidCandidates; k++)
+      {
+        int candidate=-1;
+        for(int z = from; z<=to; z++)
+          if(!selected[z] && (candidate<0 || coarse[z]>coarse[candidate]))
+            candidate=z;
+        selected[candidate]=true;
+        if(Double.isNaN(curve[candidate]))
+          curve[candidate] = FocusMeasure.getDegreeofFocus(view, channel, candidate+1, t, metric, pool);
+        measure = curve[candidate];
+        if(quality<measure)
+        {
+          quality=measure;
+          best=candidate;
+        }
       }
     }
+    else
+    {
+      ZSearch.Scorer scorer = new ZSearch.Scorer() {
+        @Override
+        public double score(int z)
+        {
+          return FocusMeasure.getDegreeofFocus(view, channel, z+1, t, metric, pool);
+        }
+      };
+      best = ZSearch.search(scorer, curve, from, to, zSearchMethod, zSearchStride, zSearchSafe);
+    }
     result.setPosition(best);
-    result.setIp(ipArray[best]);
-    //return ipArray[best].duplicate();
+    result.setIp(view.getProcessor(channel, best+1, t));
     return result;
   }
 
+  /** Get the best Z-focus plan in a window around the best plan of the previous
+   * timepoint. The window is doubled as long as the best plan is on its edge or
+   * its score dropped by more than {@link #trackingDrop}, up to the whole stack.
+   * Planes already scored are not scored again.
+   * @param view the hyperstack
+   * @param channel the channel (1-based)
+   * @param t the frame (1-based)
+   * @param metric the focus operator
+   * @param curve the focus curve, <code>NaN</code> for the planes not scored yet
+   * @param coarse the coarse focus curve of the pyramid, or <code>null</code>
+   * @param previous the best plan of the previous timepoint (0-based)
+   * @param previousScore its score
+   * @return the supposedly best focus Z-plan
+   */
+  private BestFocusResult trackBestZFocus(PlaneSource view, int channel, int t, FocusMetric metric, double[] curve, double[] coarse, 
+      int previous, double previousScore)
+  {
+    int last = curve.length-1;
+    int radius = trackingWindow;
+    while(true)
+    {
+      int from = Math.max(previous-radius, 0);
+      int to = Math.min(previous+radius, last);
+      BestFocusResult result = getBestZFocus(view, channel, t, metric, curve, coarse, from, to);
+      int best = result.getPosition();
+      boolean onEdge = (best==from && from>0) || (best==to && to<last);
+      boolean dropped = curve[best]<previousScore-trackingDrop*Math.abs(previousScore);
+      if((!onEdge && !dropped) || (from==0 && to==last))
+        return result;
+      radius *= 2;
+    }
+  }
+
+  /** Process every timepoint: on {@link #pool} if it is set and <code>parallel</code>
+   * is true, on the calling thread otherwise.
+   * @param tNumber the number of timepoints
+   * @param timepoint the work done for each timepoint
+   * @param parallel whether the timepoints are independent
+   */
+  private void forEachTimepoint(int tNumber, Timepoint timepoint, boolean parallel)
+  {
+    if(parallel && pool!=null && tNumber>1)
+      pool.invoke(new TimepointAction(timepoint, 1, tNumber+1, tNumber, new AtomicInteger()));
+    else
+      for(int t=1;t<=tNumber;t++)
+      {
+        IJ.showProgress(t, tNumber);
+        timepoint.process(t);
+      }
+  }
+
+  /** The work done for one timepoint. */
+  private interface Timepoint
+  {
+    /**
+     * @param t the timepoint (1-based)
+     */
+    public void process(int t);
+  }
+
+  /** Splits a range of timepoints in halves until a single one is left. */
+  private static class TimepointAction extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    
+    private final Timepoint timepoint;
+    private final int from;
+    private final int to;
+    private final int tNumber;
+    private final AtomicInteger done;
+    
+    TimepointAction(Timepoint timepoint, int from, int to, int tNumber, AtomicInteger done)
+    {
+      this.timepoint = timepoint;
+      this.from = from;
+      this.to = to;
+      this.tNumber = tNumber;
+      this.done = done;
+    }
+    
+    @Override
+    protected void compute()
+    {
+      if(to-from==1)
+      {
+        timepoint.process(from);
+        IJ.showProgress(done.incrementAndGet(), tNumber);
+      }
+      else
+      {
+        int middle = (from+to)>>>1;
+        invokeAll(new TimepointAction(timepoint, from, middle, tNumber, done),
+            new TimepointAction(timepoint, middle, to, tNumber, done));
+      }
+    }
+  }
 }
@@ -0,0 +1,472 @@
+package be.vib.autofocus;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.io.FileSaver;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**<p>
+ * Headless batch mode of {@link Auto_Focus}: processes every image of a
+ * directory, or a list of files, with the parameters of the dialog, and saves
+ * the outputs as TIFF instead of showing them.</p>
+ *
+ * <p>
+ * The files are processed concurrently by a fixed pool of workers, sized to
+ * the number of cores and to the memory available for the largest file, see
+ * {@link #MEMORY_PER_FILE}. Each file is processed sequentially by its worker.</p>
+ *
+ * <b>Options</b>, as a macro option string or as command line arguments:
+ * <ul>
+ * <li><code>input</code>: a directory, or files separated by <code>;</code> (required)</li>
+ * <li><code>output</code>: the directory of the outputs, the input directory by default</li>
+ * <li><code>brightfield</code>: the brightfield channel, 1 by default</li>
+ * <li><code>fluorescent</code>: the fluorescent channels separated by <code>,</code>, none by default</li>
+ * <li><code>method</code>: the name of the focus operator, {@link FocusMeasure#VOLLATH} by default</li>
+ * <li><code>projection</code>: the name of the {@link ZProjector} method, Max Intensity by default</li>
+ * <li><code>best_plane</code>: use the best plane of the brightfield instead of the projection</li>
+ * <li><code>merge</code>: one of {@link Auto_Focus#MERGE_OPTIONS}, Both by default</li>
+ * <li><code>which</code>: one of {@link Auto_Focus#CHANNEL_OPTIONS}, Both by default</li>
+ * <li><code>map</code>: compute the tiled focus map, with <code>tiles_x</code> and <code>tiles_y</code> (8 by default)</li>
+ * <li><code>edf</code>: compute the extended depth of field of the brightfield, with <code>edf_radius</code>
+ * (4 by default) and <code>edf_smoothing</code> (2 by default), see {@link ExtendedDepthOfField}</li>
+ * <li><code>weighted</code>: compute the focus-weighted projection of the fluorescent channels, per tile of
+ * <code>tiles_x</code> by <code>tiles_y</code>, see {@link FocusWeightedProjection}</li>
+ * <li><code>pyramid</code>, <code>candidates</code>, <code>tracking</code> and <code>z_search</code>: as in the dialog</li>
+ * <li><code>unsafe</code>: no full Z scan if the focus curve has several peaks; the full scan is on by
+ * default, as in the dialog</li>
+ * <li><code>workers</code>: the number of files processed at once, 0 (default) to size the pool automatically</li>
+ * <li><code>stream</code>: read the files one timepoint at a time, memory-mapped if they are uncompressed TIFF
+ * and as virtual stacks otherwise, and write a single
+ * <code>_AutoFocused</code> hyperstack per file, see {@link StreamingAutoFocus}. The merge, which, map,
+ * edf and weighted options are ignored.</li>
+ * </ul>
+ * Values with spaces are put in brackets, e.g.
+ * <pre>
+ * java -Djava.awt.headless=true -cp ij.jar:AutoFocus.jar be.vib.autofocus.Auto_Focus_Batch input=/data/in output=/data/out fluorescent=2,3 projection=[Max Intensity]
+ * </pre>
+ */
+public class Auto_Focus_Batch implements PlugIn
+{
+  /** Plugin's name */
+  public static final String PLUGIN_NAME = "AutoFocus Widefield Batch";
+  /** Memory needed to process a file, as a multiple of its size on disk */
+  public static final int MEMORY_PER_FILE = 4;
+  /** Extensions of the files processed in an input directory */
+  public static final String[] EXTENSIONS = {".tif", ".tiff", ".zip"};
+
+  private File[] inputFiles;
+  private File outputDirectory;
+  private int brightfieldChannel = 1;
+  private ArrayList<Integer> fluorescentChannels = new ArrayList<Integer>();
+  private int degreeofFocusMethod = FocusMeasure.VOLLATH;
+  private int projectionMethod = ZProjector.MAX_METHOD;
+  private boolean useBestFocusInsteadOfProjection = false;
+  private int mergeChannel = Auto_Focus.BOTH;
+  private int channelOption = Auto_Focus.BOTH;
+  private boolean computeFocusMap = false;
+  private int tilesX = 8;
+  private int tilesY = 8;
+  private boolean computeEDF = false;
+  private int edfRadius = 4;
+  private double edfSmoothing = 2;
+  private boolean computeWeighted = false;
+  private int pyramidDepth = 0;
+  private int pyramidCandidates = 3;
+  private int trackingWindow = 0;
+  private int zSearchMethod = ZSearch.EXHAUSTIVE;
+  private boolean zSearchSafe = true;
+  private int workers = 0;
+  private boolean stream = false;
+
+  /* (non-Javadoc)
+   * @see ij.plugin.PlugIn#run(java.lang.String)
+   */
+  @Override
+  public void run(String arg)
+  {
+    String options = Macro.getOptions();
+    if (options==null)
+    {
+      IJ.error(PLUGIN_NAME, "Run from a macro: run(\"Auto_Focus Batch\", \"input=... output=... fluorescent=2,3\");");
+      return;
+    }
+    try
+    {
+      setOptions(options);
+    }
+    catch (IllegalArgumentException e)
+    {
+      IJ.error(PLUGIN_NAME, e.getMessage());
+      return;
+    }
+    process();
+  }
+
+  /** Run the batch mode from the command line.
+   * @param args the options, e.g. <code>input=/data/in output=/data/out</code>
+   */
+  public static void main(String[] args)
+  {
+    System.setProperty("java.awt.headless", "true");
+    StringBuilder options = new StringBuilder();
+    for (String arg : args)
+      options.append(arg).append(' ');
+    Auto_Focus_Batch batch = new Auto_Focus_Batch();
+    try
+    {
+      batch.setOptions(options.toString());
+    }
+    catch (IllegalArgumentException e)
+    {
+      System.err.println(e.getMessage());
+      System.exit(2);
+    }
+    System.exit(batch.process()==0?0:1);
+  }
+
+  /** Read the parameters from an option string, see the class documentation.
+   * @param options the options
+   * @throws IllegalArgumentException if the input is missing or an option is invalid
+   */
+  public void setOptions(String options)
+  {
+    String input = Macro.getValue(options, "input", null);
+    if (input==null)
+      throw new IllegalArgumentException("No input directory or file");
+    inputFiles = listInputs(input);
+    String output = Macro.getValue(options, "output", null);
+    if (output!=null)
+      outputDirectory = new File(output);
+    else if (new File(input).isDirectory())
+      outputDirectory = new File(input);
+    else
+      outputDirectory = null;
+
+    brightfieldChannel = getInt(options, "brightfield", brightfieldChannel);
+    fluorescentChannels = new ArrayList<Integer>();
+    String fluorescent = Macro.getValue(options, "fluorescent", "");
+    for (String channel : fluorescent.split(","))
+      if (channel.trim().length()>0)
+        fluorescentChannels.add(parseInt("fluorescent", channel.trim()));
+
+    String method = Macro.getValue(options, "method", null);
+    if (method!=null)
+      degreeofFocusMethod = indexOf("method", FocusMetrics.getNames(), method);
+    String projection = Macro.getValue(options, "projection", null);
+    if (projection!=null)
+      projectionMethod = indexOf("projection", ZProjector.METHODS, projection);
+    useBestFocusInsteadOfProjection = isSet(options, "best_plane");
+    String merge = Macro.getValue(options, "merge", null);
+    if (merge!=null)
+      mergeChannel = indexOf("merge", Auto_Focus.MERGE_OPTIONS, merge);
+    String which = Macro.getValue(options, "which", null);
+    if (which!=null)
+      channelOption = indexOf("which", Auto_Focus.CHANNEL_OPTIONS, which);
+
+    computeFocusMap = isSet(options, "map");
+    tilesX = getInt(options, "tiles_x", tilesX);
+    tilesY = getInt(options, "tiles_y", tilesY);
+    computeEDF = isSet(options, "edf");
+    edfRadius = getInt(options, "edf_radius", edfRadius);
+    edfSmoothing = getDouble(options, "edf_smoothing", edfSmoothing);
+    computeWeighted = isSet(options, "weighted");
+    pyramidDepth = getInt(options, "pyramid", pyramidDepth);
+    pyramidCandidates = getInt(options, "candidates", pyramidCandidates);
+    trackingWindow = getInt(options, "tracking", trackingWindow);
+    String zSearch = Macro.getValue(options, "z_search", null);
+    if (zSearch!=null)
+      zSearchMethod = indexOf("z_search", ZSearch.METHODS, zSearch);
+    zSearchSafe = !isSet(options, "unsafe");
+    workers = getInt(options, "workers", workers);
+    stream = isSet(options, "stream");
+  }
+
+  /** Process every input file.
+   * @return the number of files that could not be processed
+   */
+  public int process()
+  {
+    if (inputFiles.length==0)
+    {
+      IJ.log(PLUGIN_NAME+": no file to process");
+      return 0;
+    }
+    int n = workers>0 ? workers : stream ? Runtime.getRuntime().availableProcessors() : getWorkerCount(inputFiles);
+    n = Math.min(n, inputFiles.length);
+    IJ.log(PLUGIN_NAME+": "+inputFiles.length+" files, "+n+" at once");
+    ExecutorService executor = Executors.newFixedThreadPool(n);
+    List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+    for (final File file : inputFiles)
+      futures.add(executor.submit(new Callable<Boolean>()
+      {
+        @Override
+        public Boolean call()
+        {
+          return processFile(file);
+        }
+      }));
+    executor.shutdown();
+    int failures = 0;
+    for (int i=0; i<futures.size(); i++)
+    {
+      try
+      {
+        if (!futures.get(i).get())
+          failures++;
+      }
+      catch (Exception e)
+      {
+        IJ.log(inputFiles[i].getName()+": "+e);
+        failures++;
+      }
+    }
+    IJ.log(PLUGIN_NAME+": done, "+failures+" failed");
+    return failures;
+  }
+
+  /** Process one file and save its outputs.
+   * @param file the hyperstack (XYCZT)
+   * @return true if the outputs were saved
+   */
+  public boolean processFile(File file)
+  {
+    ImagePlus imp = null;
+    PlaneSource source = null;
+    if (stream)
+    {
+      //In streaming mode the planes are read on demand: uncompressed TIFF files are mapped,
+      //the others are opened as virtual stacks
+      try
+      {
+        source = MappedPlaneSource.open(file);
+      }
+      catch (IOException e)
+      {
+        imp = IJ.openVirtual(file.getPath());
+        if (imp!=null)
+          source = new HyperstackView(imp);
+      }
+    }
+    else
+      imp = IJ.openImage(file.getPath());
+    if (imp==null && source==null)
+    {
+      IJ.log(file.getName()+": cannot be opened");
+      return false;
+    }
+    try
+    {
+      int nChannels = source!=null ? source.getNChannels() : imp.getNChannels();
+      if (brightfieldChannel<1 || brightfieldChannel>nChannels)
+      {
+        IJ.log(file.getName()+": no brightfield channel "+brightfieldChannel);
+        return false;
+      }
+      ArrayList<Integer> fluorescentChannelArrayList = new ArrayList<Integer>();
+      for (int channel : fluorescentChannels)
+        if (channel>=1 && channel<=nChannels && channel!=brightfieldChannel)
+          fluorescentChannelArrayList.add(channel);
+
+      Auto_Focus autoFocus = new Auto_Focus();
+      //The files are the unit of parallelism: each one is processed on its worker only
+      autoFocus.setForkJoinPool(null);
+      //The image is not reopened, the scores are not kept
+      autoFocus.setFocusScoreCache(null);
+      autoFocus.setPyramidDepth(pyramidDepth);
+      autoFocus.setPyramidCandidates(pyramidCandidates);
+      autoFocus.setTrackingWindow(trackingWindow);
+      autoFocus.setZSearchMethod(zSearchMethod);
+      autoFocus.setZSearchSafe(zSearchSafe);
+      autoFocus.setEdfRadius(edfRadius);
+      autoFocus.setEdfSmoothing(edfSmoothing);
+
+      File directory = outputDirectory!=null ? outputDirectory : file.getAbsoluteFile().getParentFile();
+      if (!directory.isDirectory() && !directory.mkdirs())
+      {
+        IJ.log(directory+": cannot be created");
+        return false;
+      }
+      String base = file.getName();
+      if (base.lastIndexOf('.')>0)
+        base = base.substring(0, base.lastIndexOf('.'));
+      if (stream)
+        return streamFile(autoFocus, source, fluorescentChannelArrayList, new File(directory, base+"_AutoFocused.tif"));
+
+      List<ImagePlus> outputs = new ArrayList<ImagePlus>();
+      autoFocus.setOutputList(outputs);
+      autoFocus.generateOutputs(imp, fluorescentChannelArrayList, brightfieldChannel, projectionMethod, degreeofFocusMethod,
+          mergeChannel, channelOption, useBestFocusInsteadOfProjection);
+      if (computeFocusMap && tilesX>0 && tilesY>0)
+        outputs.add(autoFocus.generateFocusMap(imp, brightfieldChannel, degreeofFocusMethod, tilesX, tilesY));
+      if (computeEDF)
+      {
+        BestFocusEDFResult edf = autoFocus.generateExtendedDepthOfField(imp, brightfieldChannel, degreeofFocusMethod);
+        outputs.add(edf.getComposite());
+        outputs.add(edf.getHeightMap());
+      }
+      if (computeWeighted && !fluorescentChannelArrayList.isEmpty())
+        outputs.add(autoFocus.generateFocusWeightedProjection(imp, brightfieldChannel, fluorescentChannelArrayList,
+            degreeofFocusMethod, tilesX, tilesY));
+
+      Set<String> names = new HashSet<String>();
+      boolean saved = true;
+      for (ImagePlus output : outputs)
+      {
+        String name = base+"_"+output.getTitle().trim().replaceAll("[^A-Za-z0-9._-]+", "_");
+        String unique = name;
+        for (int i=2; !names.add(unique); i++)
+          unique = name+"_"+i;
+        String path = new File(directory, unique+".tif").getPath();
+        if (!new FileSaver(output).saveAsTiff(path))
+        {
+          IJ.log(path+": cannot be saved");
+          saved = false;
+        }
+        output.flush();
+      }
+      IJ.log(file.getName()+": "+outputs.size()+" outputs saved");
+      return saved;
+    }
+    finally
+    {
+      if (imp!=null)
+        imp.flush();
+    }
+  }
+
+  /** Process one file one timepoint at a time, see {@link StreamingAutoFocus}.
+   * @return true if the output was written
+   */
+  private boolean streamFile(Auto_Focus autoFocus, PlaneSource source, ArrayList<Integer> fluorescentChannelArrayList, File output)
+  {
+    int method = useBestFocusInsteadOfProjection ? ProjectionPlan.BEST_PLANE : projectionMethod;
+    try
+    {
+      new StreamingAutoFocus(autoFocus, brightfieldChannel, fluorescentChannelArrayList,
+          FocusMetrics.get(degreeofFocusMethod), method).process(source, output);
+    }
+    catch (IOException e)
+    {
+      IJ.log(output+": "+e.getMessage());
+      return false;
+    }
+    IJ.log(output.getName()+" saved");
+    return true;
+  }
+
+  /** Number of files processed at once: one per core, as long as the largest
+   * file fits {@link #MEMORY_PER_FILE} times in the free memory of each worker.
+   * @param files the input files
+   * @return the number of workers, at least 1
+   */
+  public static int getWorkerCount(File[] files)
+  {
+    long largest = 1;
+    for (File file : files)
+      largest = Math.max(largest, file.length());
+    Runtime runtime = Runtime.getRuntime();
+    long available = runtime.maxMemory()-(runtime.totalMemory()-runtime.freeMemory());
+    long byMemory = available/(largest*MEMORY_PER_FILE);
+    return (int)Math.max(1, Math.min(runtime.availableProcessors(), byMemory));
+  }
+
+  /** The files of a directory with one of the {@link #EXTENSIONS}, or a list of files
+   * separated by <code>;</code>, sorted by name. */
+  private static File[] listInputs(String input)
+  {
+    File directory = new File(input);
+    ArrayList<File> files = new ArrayList<File>();
+    if (directory.isDirectory())
+    {
+      File[] children = directory.listFiles();
+      if (children!=null)
+        for (File child : children)
+          if (child.isFile() && hasExtension(child.getName()))
+            files.add(child);
+    }
+    else
+    {
+      for (String path : input.split(";"))
+        if (path.trim().length()>0)
+        {
+          File file = new File(path.trim());
+          if (!file.isFile())
+            throw new IllegalArgumentException("No such file: "+file);
+          files.add(file);
+        }
+    }
+    File[] array = files.toArray(new File[files.size()]);
+    Arrays.sort(array);
+    return array;
+  }
+
+  private static boolean hasExtension(String name)
+  {
+    String lower = name.toLowerCase();
+    for (String extension : EXTENSIONS)
+      if (lower.endsWith(extension))
+        return true;
+    return false;
+  }
+
+  /** A flag is set when its key is present without a value, as in the macro options of a dialog checkbox. */
+  private static boolean isSet(String options, String key)
+  {
+    return (" "+options+" ").contains(" "+key+" ");
+  }
+
+  private static int getInt(String options, String key, int defaultValue)
+  {
+    String value = Macro.getValue(options, key, null);
+    return value==null ? defaultValue : parseInt(key, value);
+  }
+
+  private static int parseInt(String key, String value)
+  {
+    try
+    {
+      return Integer.parseInt(value);
+    }
+    catch (NumberFormatException e)
+    {
+      throw new IllegalArgumentException("Invalid "+key+": "+value);
+    }
+  }
+
+  private static double getDouble(String options, String key, double defaultValue)
+  {
+    String value = Macro.getValue(options, key, null);
+    if (value==null)
+      return defaultValue;
+    try
+    {
+      return Double.parseDouble(value);
+    }
+    catch (NumberFormatException e)
+    {
+      throw new IllegalArgumentException("Invalid "+key+": "+value);
+    }
+  }
+
+  /** The index of a choice, ignoring the case. */
+  private static int indexOf(String key, String[] choices, String value)
+  {
+    for (int i=0; i<choices.length; i++)
+      if (choices[i].equalsIgnoreCase(value))
+        return i;
+    throw new IllegalArgumentException("Invalid "+key+": "+value+", expected one of "+Arrays.toString(choices));
+  }
+}
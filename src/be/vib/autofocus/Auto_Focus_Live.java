@@ -0,0 +1,382 @@
+package be.vib.autofocus;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.io.FileSaver;
+import ij.macro.Interpreter;
+import ij.plugin.PlugIn;
+import ij.process.ImageProcessor;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**<p>
+ * Live acquisition mode of {@link Auto_Focus}: watches an acquisition folder
+ * with a {@link WatchService}, and processes each timepoint as soon as its
+ * Z-stack is written: the best focus plane of the brightfield and the
+ * projections of the fluorescent channels are appended to a running result
+ * hyperstack, and its display is updated.</p>
+ *
+ * <b>Acquisitions:</b>
+ * <ul>
+ * <li>A folder with one file per timepoint, each an XYCZ stack, processed in
+ * the order of their names. A file is complete when its size did not change
+ * for {@link #SETTLE_MILLIS}.</li>
+ * <li>A single growing uncompressed TIFF file, whose header already describes
+ * every plane, e.g. written by {@link TiffStreamWriter}. A frame is complete
+ * when all its planes are in the file, see {@link MappedPlaneSource#isComplete(int)}.</li>
+ * </ul>
+ * <p>
+ * Only the new files or frames are read, so the time spent per timepoint does
+ * not depend on the length of the experiment. The mode stops after the
+ * expected number of timepoints, after a time without new timepoint, or when
+ * Esc is pressed; the result is then saved if an output file is set.</p>
+ */
+public class Auto_Focus_Live implements PlugIn
+{
+  /** Plugin's name */
+  public static final String PLUGIN_NAME = "AutoFocus Widefield Live";
+  /** Time a file must keep the same size to be considered complete */
+  public static final long SETTLE_MILLIS = 1000;
+  /** Time between two checks of the acquisition */
+  public static final long POLL_MILLIS = 250;
+
+  private final Auto_Focus autoFocus = new Auto_Focus();
+  private File acquisition;
+  private File output;
+  private int brightfieldChannel = 1;
+  private ArrayList<Integer> fluorescentChannels = new ArrayList<Integer>();
+  private int degreeofFocusMethod = FocusMeasure.VOLLATH;
+  private int projectionMethod = ZProjector.MAX_METHOD;
+  private int expectedFrames = 0;
+  private int idleSeconds = 600;
+
+  private StreamingAutoFocus streaming;
+  private ImagePlus result;
+  private int frames = 0;
+
+  /* (non-Javadoc)
+   * @see ij.plugin.PlugIn#run(java.lang.String)
+   */
+  @Override
+  public void run(String arg)
+  {
+    if (!showDialog())
+      return;
+    try
+    {
+      watch();
+    }
+    catch (IOException e)
+    {
+      IJ.error(PLUGIN_NAME, e.getMessage());
+    }
+  }
+
+  private boolean showDialog()
+  {
+    GenericDialog gd = new GenericDialog(PLUGIN_NAME);
+    gd.addStringField("Acquisition folder or growing file", "", 40);
+    gd.addStringField("Save result as (optional)", "", 40);
+    gd.addNumericField("BrightField channel", brightfieldChannel, 0);
+    gd.addStringField("Fluorescent channels (e.g. 2,3)", "", 10);
+    gd.addChoice("Best Focus Method : ", FocusMetrics.getNames(), FocusMeasure.METHODS[degreeofFocusMethod]);
+    String[] projections = new String[ZProjector.METHODS.length+1];
+    System.arraycopy(ZProjector.METHODS, 0, projections, 0, ZProjector.METHODS.length);
+    projections[ZProjector.METHODS.length] = "Best BrightField Plane";
+    gd.addChoice("Projection type: ", projections, ZProjector.METHODS[projectionMethod]);
+    gd.addNumericField("Tracking window (+/- planes, 0 = off)", autoFocus.getTrackingWindow(), 0);
+    gd.addChoice("Z search", ZSearch.METHODS, ZSearch.METHODS[autoFocus.getZSearchMethod()]);
+    gd.addNumericField("Timepoints (0 = until Esc)", expectedFrames, 0);
+    gd.addNumericField("Stop after idle (s)", idleSeconds, 0);
+    gd.showDialog();
+    if (gd.wasCanceled())
+      return false;
+    acquisition = new File(gd.getNextString().trim());
+    String save = gd.getNextString().trim();
+    output = save.length()>0 ? new File(save) : null;
+    brightfieldChannel = (int)gd.getNextNumber();
+    fluorescentChannels = new ArrayList<Integer>();
+    for (String channel : gd.getNextString().split(","))
+      if (channel.trim().length()>0)
+        fluorescentChannels.add(Integer.parseInt(channel.trim()));
+    degreeofFocusMethod = gd.getNextChoiceIndex();
+    projectionMethod = gd.getNextChoiceIndex();
+    if (projectionMethod==ZProjector.METHODS.length)
+      projectionMethod = ProjectionPlan.BEST_PLANE;
+    autoFocus.setTrackingWindow((int)gd.getNextNumber());
+    autoFocus.setZSearchMethod(gd.getNextChoiceIndex());
+    expectedFrames = (int)gd.getNextNumber();
+    idleSeconds = (int)gd.getNextNumber();
+    return true;
+  }
+
+  /** Watch the acquisition until it is finished, processing the timepoints as they land.
+   * @return the result hyperstack (XYCT), <code>null</code> if no timepoint was processed
+   * @throws IOException if the acquisition cannot be watched or the result cannot be saved
+   */
+  public ImagePlus watch() throws IOException
+  {
+    if (!acquisition.exists())
+      throw new IOException("No such folder or file: "+acquisition);
+    //The curves of the new files are not needed again
+    autoFocus.setFocusScoreCache(null);
+    streaming = new StreamingAutoFocus(autoFocus, brightfieldChannel, fluorescentChannels,
+        FocusMetrics.get(degreeofFocusMethod), projectionMethod);
+    boolean growing = acquisition.isFile();
+    Path folder = (growing ? acquisition.getAbsoluteFile().getParentFile() : acquisition).toPath();
+    WatchService watcher = FileSystems.getDefault().newWatchService();
+    try
+    {
+      folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+      IJ.showStatus(PLUGIN_NAME+": watching "+acquisition+", Esc to stop");
+      if (growing)
+        watchFile(watcher);
+      else
+        watchFolder(watcher);
+    }
+    finally
+    {
+      watcher.close();
+    }
+    IJ.showStatus(PLUGIN_NAME+": "+frames+" timepoints processed");
+    if (result!=null && output!=null && !new FileSaver(result).saveAsTiff(output.getPath()))
+      throw new IOException(output+": cannot be saved");
+    return result;
+  }
+
+  /** One file per timepoint: the files reported by the watcher are queued by
+   * name, and processed in order once their size is stable. */
+  private void watchFolder(WatchService watcher) throws IOException
+  {
+    TreeSet<String> pending = new TreeSet<String>();
+    Map<String, Long> sizes = new HashMap<String, Long>();
+    Map<String, Long> changes = new HashMap<String, Long>();
+    Set<String> processed = new HashSet<String>();
+    //The files already there when the watch starts
+    String[] names = acquisition.list();
+    if (names!=null)
+      for (String name : names)
+        if (new File(acquisition, name).isFile())
+          pending.add(name);
+    long lastFrame = System.currentTimeMillis();
+    while (!isDone(lastFrame))
+    {
+      for (String name : poll(watcher))
+        if (!name.startsWith(".") && !processed.contains(name))
+          pending.add(name);
+      long now = System.currentTimeMillis();
+      while (!pending.isEmpty())
+      {
+        String name = pending.first();
+        File file = new File(acquisition, name);
+        long size = file.length();
+        Long previous = sizes.get(name);
+        if (previous==null || previous!=size)
+        {
+          sizes.put(name, size);
+          changes.put(name, now);
+        }
+        if (size==0 || now-changes.get(name)<SETTLE_MILLIS)
+          break;
+        pending.remove(name);
+        sizes.remove(name);
+        changes.remove(name);
+        processed.add(name);
+        if (file.isDirectory())
+          continue;
+        PlaneSource source = openTimepoint(file);
+        if (source==null)
+          continue;
+        append(streaming.processTimepoint(source, 1));
+        lastFrame = now;
+      }
+    }
+  }
+
+  /** A growing file: the frames are processed in order once all their planes are written. */
+  private void watchFile(WatchService watcher) throws IOException
+  {
+    MappedPlaneSource source = MappedPlaneSource.open(acquisition, true);
+    if (expectedFrames<=0 || expectedFrames>source.getNFrames())
+      expectedFrames = source.getNFrames();
+    long lastFrame = System.currentTimeMillis();
+    while (!isDone(lastFrame))
+    {
+      poll(watcher);
+      while (frames<expectedFrames && source.isComplete(frames+1))
+      {
+        append(streaming.processTimepoint(source, frames+1));
+        lastFrame = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /** Wait for the next events of the watcher, or for the next poll.
+   * @return the names of the files created or modified
+   */
+  private static ArrayList<String> poll(WatchService watcher) throws IOException
+  {
+    ArrayList<String> names = new ArrayList<String>();
+    try
+    {
+      WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      if (key!=null)
+      {
+        for (WatchEvent<?> event : key.pollEvents())
+          if (event.context() instanceof Path)
+            names.add(((Path)event.context()).getFileName().toString());
+        key.reset();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    }
+    return names;
+  }
+
+  private boolean isDone(long lastFrame)
+  {
+    if (expectedFrames>0 && frames>=expectedFrames)
+      return true;
+    if (idleSeconds>0 && System.currentTimeMillis()-lastFrame>idleSeconds*1000L)
+      return true;
+    if (IJ.escapePressed())
+    {
+      IJ.resetEscape();
+      return true;
+    }
+    return Thread.currentThread().isInterrupted();
+  }
+
+  /** Open the Z-stack of one timepoint: mapped if it is an uncompressed TIFF file.
+   * @return its planes, <code>null</code> if it is not an image
+   */
+  private PlaneSource openTimepoint(File file)
+  {
+    try
+    {
+      return MappedPlaneSource.open(file);
+    }
+    catch (IOException e)
+    {
+      ImagePlus imp = IJ.openImage(file.getPath());
+      if (imp==null)
+      {
+        IJ.log(file.getName()+": not an image, skipped");
+        return null;
+      }
+      return new HyperstackView(imp);
+    }
+  }
+
+  /** Append the outputs of a timepoint to the result, and update its display. */
+  private void append(ImageProcessor[] outputs)
+  {
+    frames++;
+    ImageStack stack = result==null ? new ImageStack(outputs[0].getWidth(), outputs[0].getHeight()) : result.getStack();
+    int bitDepth = result==null ? StreamingAutoFocus.maxBitDepth(outputs) : result.getBitDepth();
+    for (ImageProcessor ip : outputs)
+      stack.addSlice("t"+frames, StreamingAutoFocus.convert(ip, bitDepth).duplicate());
+    boolean display = !GraphicsEnvironment.isHeadless() && !Interpreter.isBatchMode();
+    if (result==null)
+    {
+      result = new ImagePlus("Live AutoFocused", stack);
+      result.setDimensions(outputs.length, 1, frames);
+      if (display)
+        result.show();
+    }
+    else
+    {
+      result.setStack(stack, outputs.length, 1, frames);
+      if (display)
+        result.setPosition(result.getC(), 1, frames);
+      else
+        result.setPositionWithoutUpdate(1, 1, frames);
+    }
+    IJ.showStatus(PLUGIN_NAME+": timepoint "+frames);
+  }
+
+  public void setAcquisition(File acquisition)
+  {
+    this.acquisition = acquisition;
+  }
+
+  public void setOutput(File output)
+  {
+    this.output = output;
+  }
+
+  public void setBrightfieldChannel(int brightfieldChannel)
+  {
+    this.brightfieldChannel = brightfieldChannel;
+  }
+
+  public void setFluorescentChannels(ArrayList<Integer> fluorescentChannels)
+  {
+    this.fluorescentChannels = fluorescentChannels;
+  }
+
+  public void setDegreeofFocusMethod(int degreeofFocusMethod)
+  {
+    this.degreeofFocusMethod = degreeofFocusMethod;
+  }
+
+  /**
+   * @param projectionMethod a {@link ZProjector} method, or {@link ProjectionPlan#BEST_PLANE}
+   */
+  public void setProjectionMethod(int projectionMethod)
+  {
+    this.projectionMethod = projectionMethod;
+  }
+
+  /**
+   * @param expectedFrames the number of timepoints after which the watch stops, 0 to watch until Esc or idle
+   */
+  public void setExpectedFrames(int expectedFrames)
+  {
+    this.expectedFrames = expectedFrames;
+  }
+
+  /**
+   * @param idleSeconds the time without new timepoint after which the watch stops, 0 to never stop
+   */
+  public void setIdleSeconds(int idleSeconds)
+  {
+    this.idleSeconds = idleSeconds;
+  }
+
+  /**
+   * @return the settings of the Z search, tracking and peak fit
+   */
+  public Auto_Focus getAutoFocus()
+  {
+    return autoFocus;
+  }
+
+  /**
+   * @return the result hyperstack (XYCT), <code>null</code> before the first timepoint
+   */
+  public ImagePlus getResult()
+  {
+    return result;
+  }
+}
@@ -0,0 +1,22 @@
+package be.vib.autofocus;
+
+import ij.ImagePlus;
+
+public class BestFocusEDFResult {
+
+  ImagePlus composite;
+  ImagePlus heightMap;
+  
+  public ImagePlus getComposite() {
+    return composite;
+  }
+  public void setComposite(ImagePlus composite) {
+    this.composite = composite;
+  }
+  public ImagePlus getHeightMap() {
+    return heightMap;
+  }
+  public void setHeightMap(ImagePlus heightMap) {
+    this.heightMap = heightMap;
+  }
+}
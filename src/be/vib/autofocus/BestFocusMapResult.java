@@ -0,0 +1,29 @@
+package be.vib.autofocus;
+
+import ij.ImagePlus;
+
+public class BestFocusMapResult {
+
+  ImagePlus heightMap;
+  int[][][] positionMap;
+  double[][][] scoreMap;
+  
+  public ImagePlus getHeightMap() {
+    return heightMap;
+  }
+  public void setHeightMap(ImagePlus heightMap) {
+    this.heightMap = heightMap;
+  }
+  public int[][][] getPositionMap() {
+    return positionMap;
+  }
+  public void setPositionMap(int[][][] positionMap) {
+    this.positionMap = positionMap;
+  }
+  public double[][][] getScoreMap() {
+    return scoreMap;
+  }
+  public void setScoreMap(double[][][] scoreMap) {
+    this.scoreMap = scoreMap;
+  }
+}
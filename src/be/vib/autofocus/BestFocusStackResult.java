@@ -6,6 +6,8 @@ public class BestFocusStackResult {
 
   ImagePlus stack;
   int[] positionArray;
+  double[] subPlanePositionArray;
+  double[][] focusCurves;
   
   public ImagePlus getStack() {
     return stack;
@@ -19,6 +21,25 @@ public class BestFocusStackResult {
   public void setPositionArray(int[] positionArray) {
     this.positionArray = positionArray;
   }
+  /**
+   * @return the fractional best focus position (0-based) of each timepoint
+   */
+  public double[] getSubPlanePositionArray() {
+    return subPlanePositionArray;
+  }
+  public void setSubPlanePositionArray(double[] subPlanePositionArray) {
+    this.subPlanePositionArray = subPlanePositionArray;
+  }
+  /**
+   * @return the focus curve of each timepoint, indexed [t][z]: the score of
+   * each plane, <code>NaN</code> for the planes the Z search did not score
+   */
+  public double[][] getFocusCurves() {
+    return focusCurves;
+  }
+  public void setFocusCurves(double[][] focusCurves) {
+    this.focusCurves = focusCurves;
+  }
   
   
 }
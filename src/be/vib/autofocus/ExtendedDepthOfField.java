@@ -0,0 +1,249 @@
+package be.vib.autofocus;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**<p>
+ * Extended depth of field (all-in-focus) composite of the Z-stack of one
+ * timepoint: each pixel is taken from the plane where its neighbourhood is
+ * the sharpest, so a thick or tilted specimen is in focus everywhere.</p>
+ *
+ * <p>
+ * The local sharpness of a pixel is the mean of the per-pixel focus response
+ * of a {@link FocusMeasure#hasFocusResponse(FocusMetric) pointwise operator}
+ * over a square window around it. The planes are streamed: a first pass keeps
+ * the sharpest plane of each pixel, the height map is smoothed, and a second
+ * pass takes or blends the pixels at the smoothed heights. Only a few
+ * plane-sized maps are held, whatever the number of planes.</p>
+ *
+ * <p>
+ * The plane is split in horizontal bands processed in parallel on a pool. A
+ * band computes the response of the rows around it as its halo, so the
+ * result does not depend on the number of bands.</p>
+ */
+public class ExtendedDepthOfField
+{
+  /** Minimum number of rows of a band */
+  public static final int MIN_BAND_ROWS = 64;
+
+  private final PointwiseFocusMetric metric;
+  private final int radius;
+  private final double smoothing;
+  private final boolean blend;
+  private final ForkJoinPool pool;
+
+  /**
+   * @param metric a focus operator with a per-pixel response
+   * @param radius the radius of the window the response is averaged on
+   * @param smoothing the standard deviation of the Gaussian smoothing of the height map, in pixels, 0 for none
+   * @param blend blend the two planes around the smoothed height of each pixel,
+   * instead of taking the nearest one
+   * @param pool the pool the bands are processed on, <code>null</code> to process the plane in one go
+   * @throws IllegalArgumentException if the operator has no per-pixel response
+   */
+  public ExtendedDepthOfField(FocusMetric metric, int radius, double smoothing, boolean blend, ForkJoinPool pool)
+  {
+    if (!FocusMeasure.hasFocusResponse(metric))
+      throw new IllegalArgumentException(metric.getName()+" has no per-pixel focus response");
+    this.metric = (PointwiseFocusMetric)metric;
+    this.radius = Math.max(radius, 0);
+    this.smoothing = Math.max(smoothing, 0);
+    this.blend = blend;
+    this.pool = pool;
+  }
+
+  /** Compute the composite and the height map of one timepoint.
+   * @param source the planes of the hyperstack
+   * @param channel the channel (1-based)
+   * @param t the timepoint (1-based)
+   * @return the composite, of the type of the source, and the height map: the
+   * Z position (1-based, fractional when blended) each pixel is taken from
+   */
+  public ImageProcessor[] process(final PlaneSource source, final int channel, final int t)
+  {
+    final int width = source.getWidth();
+    final int height = source.getHeight();
+    int zNumber = source.getNSlices();
+    final float[] best = new float[width*height];
+    final float[] heights = new float[width*height];
+    final float[] composite = new float[width*height];
+    Arrays.fill(best, Float.NEGATIVE_INFINITY);
+    final Band[] bands = getBands(width, height);
+
+    //First pass: the sharpest plane of each pixel
+    for (int z=0; z<zNumber; z++)
+    {
+      final ImageProcessor ip = source.getProcessor(channel, z+1, t);
+      final int plane = z;
+      forEachBand(bands, new BandTask() {
+        @Override
+        public void process(Band band)
+        {
+          band.sharpest(ip, plane, best, heights, composite);
+        }
+      });
+    }
+
+    FloatProcessor heightIp = new FloatProcessor(width, height, heights, null);
+    if (smoothing>0)
+      heightIp.blurGaussian(smoothing);
+    //Second pass: the pixels at the smoothed heights
+    if (smoothing>0 || blend)
+    {
+      Arrays.fill(composite, 0);
+      for (int z=0; z<zNumber; z++)
+      {
+        final ImageProcessor ip = source.getProcessor(channel, z+1, t);
+        final int plane = z;
+        forEachBand(bands, new BandTask() {
+          @Override
+          public void process(Band band)
+          {
+            band.gather(ip, plane, heights, composite);
+          }
+        });
+      }
+    }
+    for (int i=0; i<heights.length; i++)
+      heights[i] += 1;
+    heightIp.resetMinAndMax();
+
+    FloatProcessor compositeIp = new FloatProcessor(width, height, composite, null);
+    ImageProcessor result;
+    switch (source.getBitDepth())
+    {
+      case 8: result = compositeIp.convertToByte(false); break;
+      case 16: result = compositeIp.convertToShort(false); break;
+      default: result = compositeIp; compositeIp.resetMinAndMax(); break;
+    }
+    return new ImageProcessor[] {result, heightIp};
+  }
+
+  private Band[] getBands(int width, int height)
+  {
+    int n = 1;
+    if (pool!=null)
+      n = Math.max(1, Math.min(pool.getParallelism(), height/MIN_BAND_ROWS));
+    int halo = metric.getRadius()+radius;
+    Band[] bands = new Band[n];
+    for (int i=0; i<n; i++)
+      bands[i] = new Band(width, height, (int)((long)i*height/n), (int)((long)(i+1)*height/n), halo);
+    return bands;
+  }
+
+  /** The work done on each band for one plane. */
+  private interface BandTask
+  {
+    public void process(Band band);
+  }
+
+  private void forEachBand(Band[] bands, final BandTask task)
+  {
+    if (bands.length==1)
+    {
+      task.process(bands[0]);
+      return;
+    }
+    final RecursiveAction[] tasks = new RecursiveAction[bands.length];
+    for (int i=0; i<bands.length; i++)
+    {
+      final Band band = bands[i];
+      tasks[i] = new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute()
+        {
+          task.process(band);
+        }
+      };
+    }
+    //Inside a pool, e.g. when the timepoints are processed in parallel, the bands are forked in it
+    if (ForkJoinTask.inForkJoinPool())
+      ForkJoinTask.invokeAll(tasks);
+    else
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute()
+        {
+          invokeAll(tasks);
+        }
+      });
+  }
+
+  /** Rows <code>[from, to)</code> of the plane, with the buffers of their halo. */
+  private class Band
+  {
+    final int width;
+    final int from;
+    final int to;
+    /** Rows whose response is computed: the band and its halo */
+    final Rectangle roi;
+    final float[] response;
+    final double[] integral;
+
+    Band(int width, int height, int from, int to, int halo)
+    {
+      this.width = width;
+      this.from = from;
+      this.to = to;
+      int top = Math.max(0, from-halo);
+      roi = new Rectangle(0, top, width, Math.min(height, to+halo)-top);
+      response = new float[roi.width*roi.height];
+      integral = new double[(roi.width+1)*(roi.height+1)];
+    }
+
+    /** Keep the plane as the sharpest one of the pixels of the band where its local sharpness is the highest. */
+    void sharpest(ImageProcessor ip, int z, float[] best, float[] heights, float[] composite)
+    {
+      metric.response(FocusMeasure.getPixels(ip), width, roi, response);
+      FocusMeasure.integralImage(response, roi.width, roi.height, integral, null);
+      int stride = roi.width+1;
+      for (int y=from; y<to; y++)
+      {
+        //Window rows, relative to the ROI, clipped to it
+        int y0 = Math.max(y-radius-roi.y, 0)*stride;
+        int y1 = Math.min(y+radius+1-roi.y, roi.height)*stride;
+        int rows = (y1-y0)/stride;
+        for (int x=0; x<width; x++)
+        {
+          int x0 = Math.max(x-radius, 0);
+          int x1 = Math.min(x+radius+1, width);
+          float sharpness = (float)((integral[y1+x1]-integral[y0+x1]-integral[y1+x0]+integral[y0+x0])/((x1-x0)*rows));
+          int i = y*width+x;
+          if (sharpness>best[i])
+          {
+            best[i] = sharpness;
+            heights[i] = z;
+            composite[i] = ip.getf(i);
+          }
+        }
+      }
+    }
+
+    /** Add the contribution of the plane to the pixels of the band whose smoothed height is near it. */
+    void gather(ImageProcessor ip, int z, float[] heights, float[] composite)
+    {
+      for (int i=from*width; i<to*width; i++)
+      {
+        float h = heights[i];
+        if (blend)
+        {
+          float weight = 1-Math.abs(h-z);
+          if (weight>0)
+            composite[i] += weight*ip.getf(i);
+        }
+        else if (Math.round(h)==z)
+          composite[i] = ip.getf(i);
+      }
+    }
+  }
+}
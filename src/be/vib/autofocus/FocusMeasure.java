@@ -5,11 +5,18 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
-import ij.measure.Measurements;
 import ij.plugin.PlugIn;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
+
+import java.awt.Rectangle;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 
 /**<p>
@@ -29,6 +36,8 @@ import ij.process.ImageStatistics;
  * <li>Tenegrad variance</li>
  * <li>Vollath</li>
  * </ul>
+ * The other operators of <code>fmeasure.m</code> are available as
+ * {@link FocusMetric} from {@link FocusMetrics}.
  * </p>
  * 
  * <b>Publication related to best Focus algorithm for Brightfield Images:</b>
@@ -52,6 +61,37 @@ public class FocusMeasure implements PlugIn  {
   public static final int VOLLATH = 2;
   public static final String[] METHODS = {"Tenengrad", "Tenengrad Variance", "Vollath"}; 
   
+  /** Use the SIMD friendly kernels; set the system property
+   * <code>autofocus.vectorized</code> to <code>false</code> to start with the scalar ones.
+   * Volatile, as it is read by the timepoint and stripe tasks of the pools. */
+  private static volatile boolean vectorized = !"false".equals(System.getProperty("autofocus.vectorized"));
+  
+  /** Select between the SIMD friendly kernels, whose inner loops the JIT
+   * compiles to vector instructions, and the scalar streaming kernels.
+   * Both give the same result within floating-point tolerance.
+   * @param vectorized true to use the SIMD friendly kernels
+   */
+  public static void setVectorized(boolean vectorized)
+  {
+    FocusMeasure.vectorized = vectorized;
+  }
+  
+  /**
+   * @return true if the SIMD friendly kernels are used
+   * @see #setVectorized(boolean)
+   */
+  public static boolean isVectorized()
+  {
+    return vectorized;
+  }
+  
+  /** Planes with fewer pixels in their ROI are never split in stripes */
+  public static final int STRIPE_MIN_PIXELS = 1<<20;
+  /** Minimum number of rows of a stripe */
+  public static final int STRIPE_MIN_ROWS = 64;
+  /** Number of pixels of the blocks of rows copied at once from a mapped plane */
+  public static final int MAPPED_BLOCK_PIXELS = 1<<16;
+  
   public void run(String arg) {    
     ImagePlus imp = WindowManager.getCurrentImage();
     ImageProcessor ip = imp.getProcessor();    
@@ -102,7 +142,8 @@ public class FocusMeasure implements PlugIn  {
   /** Compute a relative Degree of Focus value using the selected method
    * @param ip the image Processor
    * @param method the method used to compute the Degree of Focus. Could be one of
-   * {@link #TENENGRAD} or {@link #TENENGRAD_VARIANCE}. or {@link #VOLLATH}
+   * {@link #TENENGRAD} or {@link #TENENGRAD_VARIANCE}. or {@link #VOLLATH}, or
+   * the index of any operator registered in {@link FocusMetrics}
    *  
    * @see #TENENGRAD
    * @see #TENENGRAD_VARIANCE
@@ -118,76 +159,1176 @@ public class FocusMeasure implements PlugIn  {
       result = getDegreeOfFocusUsingTenengrad(ip);
       break;
     case TENENGRAD_VARIANCE:
-      result = getDegreeOfFocusUsingTenengrad(ip);
+      result = getDegreeOfFocusUsingTenengradVariance(ip);
       break;
     case VOLLATH:
       result = getDegreeOfFocusUsingVollath(ip);
       break;
     default:
+      if (method>0 && method<FocusMetrics.getNames().length)
+        result = getDegreeofFocus(ip, FocusMetrics.get(method));
       break;
     }
     return result;
   }
+
+  /** Compute a relative Degree of Focus value using a focus operator, on the
+   * pixels of the processor inside its ROI.
+   * @param ip the image Processor
+   * @param metric the focus operator, e.g. one from {@link FocusMetrics}
+   * @return the relative degree of focus
+   */
+  public static double getDegreeofFocus(ImageProcessor ip, FocusMetric metric)
+  {
+    return getDegreeofFocus(ip, metric, null);
+  }
+
+  /** Compute a relative Degree of Focus value using a focus operator, splitting
+   * large planes in horizontal stripes measured in parallel by the Tenengrad and
+   * Vollath operators. A stripe reads the rows around it in place as its halo,
+   * so the plane is not copied, and the partial sums of the stripes are added
+   * in order, so the result does not depend on the scheduling.
+   * @param ip the image Processor
+   * @param metric the focus operator, e.g. one from {@link FocusMetrics}
+   * @param pool the pool the stripes are measured on, <code>null</code> to
+   * measure the plane on the calling thread
+   * @return the relative degree of focus
+   * @see #STRIPE_MIN_PIXELS
+   */
+  public static double getDegreeofFocus(ImageProcessor ip, FocusMetric metric, ForkJoinPool pool)
+  {
+    return measure(metric, getPixels(ip), ip.getWidth(), ip.getRoi(), pool);
+  }
+
+  /** Compute a relative Degree of Focus value using a focus operator, on a
+   * whole plane of a hyperstack. The Tenengrad and Vollath operators read the
+   * planes of a {@link MappedPlaneSource} in blocks of rows, without copying
+   * the whole plane; the other operators, and the other sources, measure the
+   * processor of the plane.
+   * @param source the planes of the hyperstack
+   * @param c the channel (1-based)
+   * @param z the slice (1-based)
+   * @param t the frame (1-based)
+   * @param metric the focus operator, e.g. one from {@link FocusMetrics}
+   * @param pool the pool the stripes of large planes are measured on, <code>null</code> if none
+   * @return the relative degree of focus
+   * @see #getDegreeofFocus(ImageProcessor, FocusMetric, ForkJoinPool)
+   */
+  public static double getDegreeofFocus(PlaneSource source, int c, int z, int t, FocusMetric metric, ForkJoinPool pool)
+  {
+    boolean tenengrad = metric instanceof FocusMetrics.Tenengrad;
+    if (!(source instanceof MappedPlaneSource) || !tenengrad && !(metric instanceof FocusMetrics.Vollath))
+      return getDegreeofFocus(source.getProcessor(c, z, t), metric, pool);
+    int width = source.getWidth();
+    Rectangle roi = new Rectangle(0, 0, width, source.getHeight());
+    Buffer pixels = ((MappedPlaneSource)source).getPixels(c, z, t);
+    if (!tenengrad)
+      return vollath(pixels, width, roi, pool);
+    double[] sums = new double[2];
+    sobel(pixels, width, roi, sums, pool);
+    return ((FocusMetrics.Tenengrad)metric).getResult(sums, roi.width, roi.height);
+  }
+
+  /** Compute several focus operators on the ROI of one plane in a single
+   * fused traversal: each row is read once and handed to all the row window
+   * operators. Operators that are not row window based, such as the
+   * histogram ones, take their own pass.
+   * @param ip the image Processor
+   * @param metrics the focus operators
+   * @param results receives the relative degree of focus of each operator
+   */
+  public static void getDegreeofFocus(ImageProcessor ip, FocusMetric[] metrics, double[] results)
+  {
+    measure(metrics, getPixels(ip), ip.getWidth(), ip.getRoi(), results);
+  }
+
+  /** Compute several focus operators on every Z plane of one channel of a
+   * hyperstack, reading each plane once whatever the number of operators.
+   * @param imp the hyperstack (XYZT)
+   * @param selectedChannel the channel number
+   * @param metrics the focus operators
+   * @return the relative degrees of focus, indexed [metric][t-1][z-1]
+   * @see #getDegreeofFocus(ImageProcessor, FocusMetric[], double[])
+   */
+  public static double[][][] getDegreeofFocus(ImagePlus imp, int selectedChannel, FocusMetric[] metrics)
+  {
+    int zNumber = imp.getNSlices();
+    int tNumber = imp.getNFrames();
+    HyperstackView view = new HyperstackView(imp);
+    Rectangle roi = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+    double[][][] scores = new double[metrics.length][tNumber][zNumber];
+    double[] planeScores = new double[metrics.length];
+    for (int t=1; t<=tNumber; t++)
+    {
+      IJ.showProgress(t, tNumber);
+      for (int z=1; z<=zNumber; z++)
+      {
+        Object pixels = view.getPixels(selectedChannel, z, t);
+        if (pixels instanceof int[])
+          pixels = view.getProcessor(selectedChannel, z, t).convertToFloatProcessor().getPixels();
+        measure(metrics, pixels, imp.getWidth(), roi, planeScores);
+        for (int m=0; m<metrics.length; m++)
+          scores[m][t-1][z-1] = planeScores[m];
+      }
+    }
+    return scores;
+  }
+
+  /** The pixels of a processor as a <code>byte[]</code>, <code>short[]</code>
+   * or <code>float[]</code> array, converting RGB images to float. */
+  static Object getPixels(ImageProcessor ip)
+  {
+    Object pixels = ip.getPixels();
+    if (pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[])
+      return pixels;
+    return ip.convertToFloatProcessor().getPixels();
+  }
+
+  /** Run a focus operator on a <code>byte[]</code>, <code>short[]</code> or <code>float[]</code> pixel array. */
+  static double measure(FocusMetric metric, Object pixels, int width, Rectangle roi)
+  {
+    if (pixels instanceof byte[])
+      return metric.measure((byte[])pixels, width, roi);
+    else if (pixels instanceof short[])
+      return metric.measure((short[])pixels, width, roi);
+    else
+      return metric.measure((float[])pixels, width, roi);
+  }
+
+  /** Run a focus operator on a pixel array, in stripes on the pool for the
+   * Tenengrad and Vollath operators.
+   * @see #getDegreeofFocus(ImageProcessor, FocusMetric, ForkJoinPool)
+   */
+  static double measure(FocusMetric metric, Object pixels, int width, Rectangle roi, ForkJoinPool pool)
+  {
+    if (pool!=null && metric instanceof FocusMetrics.Tenengrad)
+    {
+      double[] sums = new double[2];
+      sobel(pixels, width, roi, sums, pool);
+      return ((FocusMetrics.Tenengrad)metric).getResult(sums, roi.width, roi.height);
+    }
+    if (pool!=null && metric instanceof FocusMetrics.Vollath)
+      return vollath(pixels, width, roi, pool);
+    return measure(metric, pixels, width, roi);
+  }
+
+  /** Run several focus operators on a pixel array, fusing the row window operators into one scan.
+   * @see #getDegreeofFocus(ImageProcessor, FocusMetric[], double[])
+   */
+  static void measure(FocusMetric[] metrics, Object pixels, int width, Rectangle roi, double[] results)
+  {
+    int fused = 0;
+    for (int m=0; m<metrics.length; m++)
+      if (metrics[m] instanceof WindowFocusMetric)
+        fused++;
+    if (fused>0)
+    {
+      WindowFocusMetric[] windowMetrics = new WindowFocusMetric[fused];
+      for (int m=0, i=0; m<metrics.length; m++)
+        if (metrics[m] instanceof WindowFocusMetric)
+          windowMetrics[i++] = (WindowFocusMetric)metrics[m];
+      WindowFocusMetric.Workspace workspace = WindowFocusMetric.Workspace.get();
+      double[][] acc = workspace.getAccumulators(windowMetrics, roi.width);
+      if (roi.width>0 && roi.height>0)
+        WindowFocusMetric.scan(pixels, width, roi, windowMetrics, acc, workspace);
+      for (int m=0, i=0; m<metrics.length; m++)
+        if (metrics[m] instanceof WindowFocusMetric)
+        {
+          results[m] = windowMetrics[i].getResult(acc[i], roi.width, roi.height);
+          i++;
+        }
+    }
+    for (int m=0; m<metrics.length; m++)
+      if (!(metrics[m] instanceof WindowFocusMetric))
+        results[m] = measure(metrics[m], pixels, width, roi);
+  }
+
   
   
 
   
+  /**
+   * @param metric a focus operator
+   * @return true if the operator is the summary of a per-pixel focus response,
+   * that {@link #getFocusResponse(ImageProcessor, FocusMetric, float[])} can compute
+   */
+  public static boolean hasFocusResponse(FocusMetric metric)
+  {
+    return metric instanceof PointwiseFocusMetric;
+  }
+
+  /** Compute the focus response of every pixel inside the ROI of the processor,
+   * e.g. the Sobel gradient magnitude for Tenengrad.
+   * @param ip the image Processor
+   * @param metric a focus operator with a per-pixel response
+   * @param response receives the responses of the ROI, row by row
+   * @throws IllegalArgumentException if the operator has no per-pixel response
+   * @see #hasFocusResponse(FocusMetric)
+   */
+  public static void getFocusResponse(ImageProcessor ip, FocusMetric metric, float[] response)
+  {
+    if (!hasFocusResponse(metric))
+      throw new IllegalArgumentException(metric.getName()+" has no per-pixel focus response");
+    ((PointwiseFocusMetric)metric).response(getPixels(ip), ip.getWidth(), ip.getRoi(), response);
+  }
+
+  /**
+   * @param metric a focus operator with a per-pixel response
+   * @return true if the operator summarizes its response by a variance, so that
+   * tiles need the summed-area table of the squared response
+   */
+  public static boolean isVarianceOfResponse(FocusMetric metric)
+  {
+    return hasFocusResponse(metric) && ((PointwiseFocusMetric)metric).getStatistic()!=PointwiseFocusMetric.MEAN;
+  }
+
+  /** Build the summed-area tables (integral images) of a map and of its
+   * squares in one pass: <code>integral[y*(width+1)+x]</code> is the sum of
+   * the values above and left of <code>(x, y)</code>, so the tables are
+   * <code>(width+1)*(height+1)</code> long.
+   * @param map the values, row by row
+   * @param width the width of the map
+   * @param height the height of the map
+   * @param integral receives the summed-area table of the values
+   * @param integral2 receives the summed-area table of the squared values,
+   * or <code>null</code> if not needed
+   */
+  public static void integralImage(float[] map, int width, int height, double[] integral, double[] integral2)
+  {
+    int stride = width+1;
+    for (int x=0; x<stride; x++)
+    {
+      integral[x] = 0;
+      if (integral2!=null)
+        integral2[x] = 0;
+    }
+    for (int y=0; y<height; y++)
+    {
+      int in = y*width;
+      int out = (y+1)*stride;
+      double rowSum = 0;
+      double rowSum2 = 0;
+      integral[out] = 0;
+      if (integral2!=null)
+        integral2[out] = 0;
+      for (int x=0; x<width; x++)
+      {
+        double v = map[in+x];
+        rowSum += v;
+        integral[out+x+1] = integral[out-stride+x+1]+rowSum;
+        if (integral2!=null)
+        {
+          rowSum2 += v*v;
+          integral2[out+x+1] = integral2[out-stride+x+1]+rowSum2;
+        }
+      }
+    }
+  }
+
+  /** Score each tile of a regular grid from summed-area tables, in constant
+   * time per tile. Tile <code>(i, j)</code> covers the columns
+   * <code>[j*width/tilesX, (j+1)*width/tilesX)</code> and the rows
+   * <code>[i*height/tilesY, (i+1)*height/tilesY)</code>.
+   * @param integral the summed-area table of the focus response
+   * @param integral2 the summed-area table of the squared response, to score
+   * the tiles by the variance of the response, or <code>null</code> to score
+   * them by its mean
+   * @param width the width of the response map
+   * @param height the height of the response map
+   * @param tilesX the number of tiles along X
+   * @param tilesY the number of tiles along Y
+   * @param scores receives the <code>tilesX*tilesY</code> scores, row by row
+   */
+  public static void getTileScores(double[] integral, double[] integral2, int width, int height, int tilesX, int tilesY, double[] scores)
+  {
+    int stride = width+1;
+    for (int i=0; i<tilesY; i++)
+    {
+      int y0 = (int)((long)i*height/tilesY)*stride;
+      int y1 = (int)((long)(i+1)*height/tilesY)*stride;
+      for (int j=0; j<tilesX; j++)
+      {
+        int x0 = (int)((long)j*width/tilesX);
+        int x1 = (int)((long)(j+1)*width/tilesX);
+        double n = (double)(x1-x0)*((y1-y0)/stride);
+        if (n==0)
+        {
+          scores[i*tilesX+j] = 0;
+          continue;
+        }
+        double sum = integral[y1+x1]-integral[y0+x1]-integral[y1+x0]+integral[y0+x0];
+        if (integral2==null)
+          scores[i*tilesX+j] = sum/n;
+        else
+        {
+          double sum2 = integral2[y1+x1]-integral2[y0+x1]-integral2[y1+x0]+integral2[y0+x0];
+          scores[i*tilesX+j] = variance(sum, sum2, n);
+        }
+      }
+    }
+  }
+
+  /** Decimate the ROI of the processor by <code>factor</code> along X and Y in
+   * a single pass: each value of the binned plane is the mean of a
+   * <code>factor</code>x<code>factor</code> block of pixels, read directly in the
+   * pixel type of the processor. Incomplete blocks at the right and bottom
+   * borders are dropped.
+   * @param ip the image Processor
+   * @param factor the binning factor, e.g. 2, 4 or 8 for pyramid levels 1, 2 or 3
+   * @param binned receives the <code>(roi.width/factor)*(roi.height/factor)</code> binned values
+   */
+  public static void binPlane(ImageProcessor ip, int factor, float[] binned)
+  {
+    Rectangle roi = ip.getRoi();
+    int width = ip.getWidth();
+    Object pixels = ip.getPixels();
+    if (pixels instanceof byte[])
+      bin((byte[])pixels, width, roi, factor, binned);
+    else if (pixels instanceof short[])
+      bin((short[])pixels, width, roi, factor, binned);
+    else if (pixels instanceof float[])
+      bin((float[])pixels, width, roi, factor, binned);
+    else
+      bin((float[])ip.convertToFloatProcessor().getPixels(), width, roi, factor, binned);
+  }
+
+  /** Decimate a whole plane of a hyperstack. The planes of a {@link MappedPlaneSource}
+   * are read in blocks of rows, see {@link #MAPPED_BLOCK_PIXELS}, binned by the
+   * kernels of the pixel arrays.
+   * @param source the planes of the hyperstack
+   * @param c the channel (1-based)
+   * @param z the slice (1-based)
+   * @param t the frame (1-based)
+   * @param factor the binning factor
+   * @param binned receives the <code>(width/factor)*(height/factor)</code> binned values
+   * @see #binPlane(ImageProcessor, int, float[])
+   */
+  public static void binPlane(PlaneSource source, int c, int z, int t, int factor, float[] binned)
+  {
+    if (!(source instanceof MappedPlaneSource))
+    {
+      binPlane(source.getProcessor(c, z, t), factor, binned);
+      return;
+    }
+    int width = source.getWidth();
+    Rectangle roi = new Rectangle(0, 0, width, source.getHeight());
+    bin(((MappedPlaneSource)source).getPixels(c, z, t), width, roi, factor, binned);
+  }
+
+  /** Bin the ROI of a mapped plane, copying the <code>factor</code> rows of a few
+   * binned rows at a time into the row buffer of the {@link WindowFocusMetric.Workspace}.
+   * @param pixels a {@link ByteBuffer}, {@link ShortBuffer} or {@link FloatBuffer} of the plane
+   * @see #binPlane(PlaneSource, int, int, int, int, float[])
+   */
+  static void bin(Buffer pixels, int width, Rectangle roi, int factor, float[] binned)
+  {
+    int bw = roi.width/factor;
+    int bh = roi.height/factor;
+    int block = Math.max(1, MAPPED_BLOCK_PIXELS/(width*factor));
+    WindowFocusMetric.Workspace workspace = WindowFocusMetric.Workspace.get();
+    float[] blockBinned = new float[Math.min(block, bh)*bw];
+    for (int by=0; by<bh; by+=block)
+    {
+      int n = Math.min(block, bh-by);
+      int y0 = roi.y+by*factor;
+      Object rows = workspace.copyRows(pixels, y0*width, n*factor*width);
+      bin(rows, width, new Rectangle(roi.x, 0, roi.width, n*factor), factor, blockBinned);
+      System.arraycopy(blockBinned, 0, binned, by*bw, n*bw);
+    }
+  }
+
+  /** Bin the ROI of a <code>byte[]</code>, <code>short[]</code> or <code>float[]</code> pixel array.
+   * @see #bin(byte[], int, Rectangle, int, float[])
+   */
+  static void bin(Object pixels, int width, Rectangle roi, int factor, float[] binned)
+  {
+    if (pixels instanceof byte[])
+      bin((byte[])pixels, width, roi, factor, binned);
+    else if (pixels instanceof short[])
+      bin((short[])pixels, width, roi, factor, binned);
+    else
+      bin((float[])pixels, width, roi, factor, binned);
+  }
+
+  /** Bin the ROI of an 8-bit image.
+   * @see #binPlane(ImageProcessor, int, float[])
+   */
+  static void bin(byte[] pixels, int width, Rectangle roi, int factor, float[] binned)
+  {
+    int bw = roi.width/factor;
+    int bh = roi.height/factor;
+    float scale = 1f/(factor*factor);
+    for (int by=0; by<bh; by++)
+    {
+      int out = by*bw;
+      Arrays.fill(binned, out, out+bw, 0);
+      for (int dy=0; dy<factor; dy++)
+      {
+        int row = (roi.y+by*factor+dy)*width+roi.x;
+        for (int bx=0; bx<bw; bx++)
+        {
+          int sum = 0;
+          for (int p=row+bx*factor, end=p+factor; p<end; p++)
+            sum += pixels[p]&0xff;
+          binned[out+bx] += sum;
+        }
+      }
+      for (int bx=0; bx<bw; bx++)
+        binned[out+bx] *= scale;
+    }
+  }
+
+  /** Bin the ROI of a 16-bit image.
+   * @see #binPlane(ImageProcessor, int, float[])
+   */
+  static void bin(short[] pixels, int width, Rectangle roi, int factor, float[] binned)
+  {
+    int bw = roi.width/factor;
+    int bh = roi.height/factor;
+    float scale = 1f/(factor*factor);
+    for (int by=0; by<bh; by++)
+    {
+      int out = by*bw;
+      Arrays.fill(binned, out, out+bw, 0);
+      for (int dy=0; dy<factor; dy++)
+      {
+        int row = (roi.y+by*factor+dy)*width+roi.x;
+        for (int bx=0; bx<bw; bx++)
+        {
+          int sum = 0;
+          for (int p=row+bx*factor, end=p+factor; p<end; p++)
+            sum += pixels[p]&0xffff;
+          binned[out+bx] += sum;
+        }
+      }
+      for (int bx=0; bx<bw; bx++)
+        binned[out+bx] *= scale;
+    }
+  }
+
+  /** Bin the ROI of a 32-bit image.
+   * @see #binPlane(ImageProcessor, int, float[])
+   */
+  static void bin(float[] pixels, int width, Rectangle roi, int factor, float[] binned)
+  {
+    int bw = roi.width/factor;
+    int bh = roi.height/factor;
+    float scale = 1f/(factor*factor);
+    for (int by=0; by<bh; by++)
+    {
+      int out = by*bw;
+      Arrays.fill(binned, out, out+bw, 0);
+      for (int dy=0; dy<factor; dy++)
+      {
+        int row = (roi.y+by*factor+dy)*width+roi.x;
+        for (int bx=0; bx<bw; bx++)
+        {
+          float sum = 0;
+          for (int p=row+bx*factor, end=p+factor; p<end; p++)
+            sum += pixels[p];
+          binned[out+bx] += sum;
+        }
+      }
+      for (int bx=0; bx<bw; bx++)
+        binned[out+bx] *= scale;
+    }
+  }
+
   /** Compute a relative Degree of Focus value using Vollath's correlation (Santos97)
+   * 
+   * <p>The pixels of the processor are read in place, row by row, inside its
+   * ROI bounds: no cropped or shifted copy of the image is created.</p>
    * 
    * @param ip the image Processor
    * @return the relative degree of focus
    */
   public static double getDegreeOfFocusUsingVollath(ImageProcessor ip)
   {
-    ImageProcessor ip1 = ip.crop();
-    int[] data = new int[ip1.getWidth()];
-    for(int i=0; i<ip1.getHeight()-1; i++)
+    return vollath(getPixels(ip), ip.getWidth(), ip.getRoi(), null);
+  }
+
+  /** Run Vollath's correlation matching the type of a <code>byte[]</code>,
+   * <code>short[]</code> or <code>float[]</code> pixel array.
+   * @see #vollath(byte[], int, Rectangle, ForkJoinPool)
+   */
+  static double vollath(Object pixels, int width, Rectangle roi, ForkJoinPool pool)
+  {
+    if (pixels instanceof byte[])
+      return vollath((byte[])pixels, width, roi, pool);
+    else if (pixels instanceof short[])
+      return vollath((short[])pixels, width, roi, pool);
+    else
+      return vollath((float[])pixels, width, roi, pool);
+  }
+
+  /** Vollath's correlation of an 8-bit image, computed as in <code>fmeasure.m</code>:
+   * the mean over the ROI of <code>I(y)*(I(y+1)-I(y+2))</code>, where the shifted
+   * images keep the original rows once they run out of the ROI.
+   * 
+   * @param pixels the pixel array of the image
+   * @param width the width of the image
+   * @param roi the region of the image to measure
+   * @param pool the pool the stripes of large ROIs are measured on, <code>null</code> if none
+   * @return the relative degree of focus
+   */
+  static double vollath(final byte[] pixels, final int width, final Rectangle roi, ForkJoinPool pool)
+  {
+    if (roi.width<1 || roi.height<2)
+      return 0;
+    double[] sums = new double[1];
+    stripes(roi, sums, new Stripe() {
+      @Override
+      public void measure(int from, int to, double[] sums)
+      {
+        sums[0] = vollath(pixels, width, roi, from, to);
+      }
+    }, pool);
+    return sums[0]/((double)roi.width*roi.height);
+  }
+
+  /** Sum of Vollath's correlation over the rows <code>[from, to)</code> of the ROI
+   * of an 8-bit image, reading up to 2 rows below them.
+   * @see #vollath(byte[], int, Rectangle, ForkJoinPool)
+   */
+  static double vollath(byte[] pixels, int width, Rectangle roi, int from, int to)
+  {
+    int w = roi.width;
+    int last = roi.y+roi.height-2;
+    int end = Math.min(roi.y+to-1, last);
+    double sum = 0;
+    for (int y=roi.y+from; y<=end; y++)
     {
-      ip.getRow(0, i+1, data, ip1.getWidth());
-      ip1.putRow(0, i, data, ip1.getWidth());
+      int row = y*width+roi.x;
+      int below = row+width;
+      //On the last but one row, I2 is the original row and not the one 2 rows below
+      int below2 = y<last?below+width:row;
+      long rowSum = 0;
+      for (int x=0; x<w; x++)
+        rowSum += (pixels[row+x]&0xff)*((pixels[below+x]&0xff)-(pixels[below2+x]&0xff));
+      sum += rowSum;
     }
-    ImageProcessor ip2 = ip.duplicate();
-    data = new int[ip2.getWidth()];
-    for(int i=0; i<ip2.getHeight()-2; i++)
+    return sum;
+  }
+
+  /** Vollath's correlation of a 16-bit image.
+   * @see #vollath(byte[], int, Rectangle, ForkJoinPool)
+   */
+  static double vollath(final short[] pixels, final int width, final Rectangle roi, ForkJoinPool pool)
+  {
+    if (roi.width<1 || roi.height<2)
+      return 0;
+    double[] sums = new double[1];
+    stripes(roi, sums, new Stripe() {
+      @Override
+      public void measure(int from, int to, double[] sums)
+      {
+        sums[0] = vollath(pixels, width, roi, from, to);
+      }
+    }, pool);
+    return sums[0]/((double)roi.width*roi.height);
+  }
+
+  /** Sum of Vollath's correlation over the rows <code>[from, to)</code> of the ROI
+   * of a 16-bit image, reading up to 2 rows below them.
+   * @see #vollath(short[], int, Rectangle, ForkJoinPool)
+   */
+  static double vollath(short[] pixels, int width, Rectangle roi, int from, int to)
+  {
+    int w = roi.width;
+    int last = roi.y+roi.height-2;
+    int end = Math.min(roi.y+to-1, last);
+    double sum = 0;
+    for (int y=roi.y+from; y<=end; y++)
     {
-      ip.getRow(0, i+2, data, ip2.getWidth());
-      ip2.putRow(0, i, data, ip2.getWidth());
+      int row = y*width+roi.x;
+      int below = row+width;
+      int below2 = y<last?below+width:row;
+      long rowSum = 0;
+      for (int x=0; x<w; x++)
+        rowSum += (long)(pixels[row+x]&0xffff)*((pixels[below+x]&0xffff)-(pixels[below2+x]&0xffff));
+      sum += rowSum;
     }
-    FloatProcessor finalProcessor = ip.duplicate().convertToFloatProcessor();
-    for (int x=0; x<ip.getWidth(); x++)
-    {
-      for (int y=0; y<ip.getHeight(); y++)
+    return sum;
+  }
+
+  /** Vollath's correlation of a 32-bit image.
+   * @see #vollath(byte[], int, Rectangle, ForkJoinPool)
+   */
+  static double vollath(final float[] pixels, final int width, final Rectangle roi, ForkJoinPool pool)
+  {
+    if (roi.width<1 || roi.height<2)
+      return 0;
+    double[] sums = new double[1];
+    stripes(roi, sums, new Stripe() {
+      @Override
+      public void measure(int from, int to, double[] sums)
       {
-        float currentValue = finalProcessor.getf(x, y);
-        finalProcessor.setf(x, y, currentValue*((float)ip1.getPixel(x, y)-(float)ip2.getPixel(x, y)));
+        sums[0] = vollath(pixels, width, roi, from, to);
       }
+    }, pool);
+    return sums[0]/((double)roi.width*roi.height);
+  }
+
+  /** Sum of Vollath's correlation over the rows <code>[from, to)</code> of the ROI
+   * of a 32-bit image, reading up to 2 rows below them.
+   * @see #vollath(float[], int, Rectangle, ForkJoinPool)
+   */
+  static double vollath(float[] pixels, int width, Rectangle roi, int from, int to)
+  {
+    int w = roi.width;
+    int last = roi.y+roi.height-2;
+    int end = Math.min(roi.y+to-1, last);
+    double sum = 0;
+    for (int y=roi.y+from; y<=end; y++)
+    {
+      int row = y*width+roi.x;
+      int below = row+width;
+      int below2 = y<last?below+width:row;
+      double rowSum = 0;
+      for (int x=0; x<w; x++)
+        rowSum += (double)pixels[row+x]*(pixels[below+x]-pixels[below2+x]);
+      sum += rowSum;
     }
-    //return mean(finalProcessor);
-    return ImageStatistics.getStatistics(finalProcessor, Measurements.MEAN, null).mean;
+    return sum;
+  }
+
+  /** Vollath's correlation of a plane of a mapped file. Each stripe is read in
+   * blocks of rows, see {@link #MAPPED_BLOCK_PIXELS}: the rows of a block and the
+   * 2 rows below it are copied into the row buffer of the
+   * {@link WindowFocusMetric.Workspace} and measured by the kernels of the pixel arrays.
+   * @param pixels a {@link ByteBuffer}, {@link ShortBuffer} or {@link FloatBuffer} of the plane
+   * @see #vollath(byte[], int, Rectangle, ForkJoinPool)
+   */
+  static double vollath(final Buffer pixels, final int width, final Rectangle roi, ForkJoinPool pool)
+  {
+    if (roi.width<1 || roi.height<2)
+      return 0;
+    double[] sums = new double[1];
+    stripes(roi, sums, new Stripe() {
+      @Override
+      public void measure(int from, int to, double[] sums)
+      {
+        WindowFocusMetric.Workspace workspace = WindowFocusMetric.Workspace.get();
+        int block = Math.max(1, MAPPED_BLOCK_PIXELS/width);
+        double sum = 0;
+        for (int b=from; b<to; b+=block)
+        {
+          int end = Math.min(b+block, to);
+          int y0 = roi.y+b;
+          int y1 = roi.y+Math.min(end+2, roi.height);
+          Object rows = workspace.copyRows(pixels, y0*width, (y1-y0)*width);
+          //The ROI is shifted to the first row of the block, its borders are unchanged
+          sum += vollath(rows, width, new Rectangle(roi.x, roi.y-y0, roi.width, roi.height), b, end);
+        }
+        sums[0] = sum;
+      }
+    }, pool);
+    return sums[0]/((double)roi.width*roi.height);
+  }
+
+  /** Sum of Vollath's correlation over the rows <code>[from, to)</code> of the ROI
+   * of a <code>byte[]</code>, <code>short[]</code> or <code>float[]</code> pixel array.
+   * @see #vollath(byte[], int, Rectangle, int, int)
+   */
+  static double vollath(Object pixels, int width, Rectangle roi, int from, int to)
+  {
+    if (pixels instanceof byte[])
+      return vollath((byte[])pixels, width, roi, from, to);
+    else if (pixels instanceof short[])
+      return vollath((short[])pixels, width, roi, from, to);
+    else
+      return vollath((float[])pixels, width, roi, from, to);
   }
 
   /** Compute a relative Degree of Focus value using  Tenengrad method (Krotkov86)
    * 
    * @param ip the image Processor
-   * @return the relative degree of focus
+   * @return the relative degree of focus, the mean of the Sobel gradient magnitude
    */
   public static double getDegreeOfFocusUsingTenengrad(ImageProcessor ip)
   {
-    ip=ip.crop();
-    ip.findEdges();
-    return ImageStatistics.getStatistics(ip, Measurements.MEAN, null).mean; 
+    Rectangle roi = ip.getRoi();
+    double[] sums = new double[2];
+    sobel(getPixels(ip), ip.getWidth(), roi, sums, null);
+    return sums[0]/((double)roi.width*roi.height);
   }
   
   /** Compute a relative Degree of Focus value using Tenengrad variance (Pech2000)
    * 
    * @param ip the image Processor
-   * @return the relative degree of focus
+   * @return the relative degree of focus, the variance of the Sobel gradient magnitude
    */
   public static double getDegreeOfFocusUsingTenengradVariance(ImageProcessor ip)
   {
-    ip=ip.crop();
-    ip.findEdges();
-    return ImageStatistics.getStatistics(ip, Measurements.STD_DEV, null).mean; 
+    Rectangle roi = ip.getRoi();
+    double[] sums = new double[2];
+    sobel(getPixels(ip), ip.getWidth(), roi, sums, null);
+    return variance(sums[0], sums[1], (double)roi.width*roi.height);
+  }
+
+  /** Sample variance from a sum and a sum of squares of <code>n</code> values. */
+  static double variance(double sum, double sum2, double n)
+  {
+    if (n<2)
+      return 0;
+    double variance = (sum2-sum*sum/n)/(n-1);
+    return variance>0?variance:0;
+  }
+
+  /** Run the Sobel kernel matching the type of a <code>byte[]</code>,
+   * <code>short[]</code> or <code>float[]</code> pixel array.
+   * @see #sobel(byte[], int, Rectangle, double[], ForkJoinPool)
+   */
+  static void sobel(Object pixels, int width, Rectangle roi, double[] sums, ForkJoinPool pool)
+  {
+    if (pixels instanceof byte[])
+      sobel((byte[])pixels, width, roi, sums, pool);
+    else if (pixels instanceof short[])
+      sobel((short[])pixels, width, roi, sums, pool);
+    else
+      sobel((float[])pixels, width, roi, sums, pool);
+  }
+
+  /** Sobel kernel of an 8-bit image, using the row-buffered kernel when
+   * {@link #isVectorized()}, the streaming one otherwise.
+   * @see #sobelScalar(byte[], int, Rectangle, int, int, double[])
+   * @see #sobelVector(byte[], int, Rectangle, int, int, double[])
+   */
+  static void sobel(final byte[] pixels, final int width, final Rectangle roi, double[] sums, ForkJoinPool pool)
+  {
+    stripes(roi, sums, new Stripe() {
+      @Override
+      public void measure(int from, int to, double[] sums)
+      {
+        if (vectorized && roi.width>=3)
+          sobelVector(pixels, width, roi, from, to, sums);
+        else
+          sobelScalar(pixels, width, roi, from, to, sums);
+      }
+    }, pool);
+  }
+
+  /** Sobel kernel of a 16-bit image.
+   * @see #sobel(byte[], int, Rectangle, double[], ForkJoinPool)
+   */
+  static void sobel(final short[] pixels, final int width, final Rectangle roi, double[] sums, ForkJoinPool pool)
+  {
+    stripes(roi, sums, new Stripe() {
+      @Override
+      public void measure(int from, int to, double[] sums)
+      {
+        if (vectorized && roi.width>=3)
+          sobelVector(pixels, width, roi, from, to, sums);
+        else
+          sobelScalar(pixels, width, roi, from, to, sums);
+      }
+    }, pool);
+  }
+
+  /** Sobel kernel of a 32-bit image.
+   * @see #sobel(byte[], int, Rectangle, double[], ForkJoinPool)
+   */
+  static void sobel(final float[] pixels, final int width, final Rectangle roi, double[] sums, ForkJoinPool pool)
+  {
+    stripes(roi, sums, new Stripe() {
+      @Override
+      public void measure(int from, int to, double[] sums)
+      {
+        if (vectorized && roi.width>=3)
+          sobelVector(pixels, width, roi, from, to, sums);
+        else
+          sobelScalar(pixels, width, roi, from, to, sums);
+      }
+    }, pool);
+  }
+
+  /** Streaming Sobel kernel of an 8-bit image. The gradient magnitude is
+   * computed as by {@link ImageProcessor#findEdges()} (edge pixels are
+   * replicated at the ROI border) but is never stored: its sum goes to
+   * <code>sums[0]</code> and the sum of its squares to <code>sums[1]</code>.
+   * Unlike <code>findEdges()</code>, the magnitude is not clipped to the pixel range.
+   * 
+   * @param pixels the pixel array of the image
+   * @param width the width of the image
+   * @param roi the region of the image to measure
+   * @param from the first row of the ROI to measure
+   * @param to the row of the ROI after the last one to measure; the rows
+   * around <code>[from, to)</code> are read as its halo
+   * @param sums receives the sum and the sum of squares of the gradient magnitude
+   */
+  static void sobelScalar(byte[] pixels, int width, Rectangle roi, int from, int to, double[] sums)
+  {
+    int w = roi.width;
+    int h = roi.height;
+    double sum = 0;
+    double sum2 = 0;
+    for (int y=from; y<to; y++)
+    {
+      int row = (roi.y+y)*width+roi.x;
+      int above = y>0?row-width:row;
+      int below = y<h-1?row+width:row;
+      //3 columns of the neighbourhood, slid along the row
+      int l0 = pixels[above]&0xff, l1 = pixels[row]&0xff, l2 = pixels[below]&0xff;
+      int c0 = l0, c1 = l1, c2 = l2;
+      for (int x=0; x<w; x++)
+      {
+        int xr = x<w-1?x+1:x;
+        int r0 = pixels[above+xr]&0xff;
+        int r1 = pixels[row+xr]&0xff;
+        int r2 = pixels[below+xr]&0xff;
+        int gy = l0+2*c0+r0-l2-2*c2-r2;
+        int gx = l0+2*l1+l2-r0-2*r1-r2;
+        double g2 = gx*gx+gy*gy;
+        sum += Math.sqrt(g2);
+        sum2 += g2;
+        l0 = c0; l1 = c1; l2 = c2;
+        c0 = r0; c1 = r1; c2 = r2;
+      }
+    }
+    sums[0] = sum;
+    sums[1] = sum2;
+  }
+
+  /** Streaming Sobel kernel of a 16-bit image.
+   * @see #sobelScalar(byte[], int, Rectangle, int, int, double[])
+   */
+  static void sobelScalar(short[] pixels, int width, Rectangle roi, int from, int to, double[] sums)
+  {
+    int w = roi.width;
+    int h = roi.height;
+    double sum = 0;
+    double sum2 = 0;
+    for (int y=from; y<to; y++)
+    {
+      int row = (roi.y+y)*width+roi.x;
+      int above = y>0?row-width:row;
+      int below = y<h-1?row+width:row;
+      int l0 = pixels[above]&0xffff, l1 = pixels[row]&0xffff, l2 = pixels[below]&0xffff;
+      int c0 = l0, c1 = l1, c2 = l2;
+      for (int x=0; x<w; x++)
+      {
+        int xr = x<w-1?x+1:x;
+        int r0 = pixels[above+xr]&0xffff;
+        int r1 = pixels[row+xr]&0xffff;
+        int r2 = pixels[below+xr]&0xffff;
+        double gy = l0+2*c0+r0-l2-2*c2-r2;
+        double gx = l0+2*l1+l2-r0-2*r1-r2;
+        double g2 = gx*gx+gy*gy;
+        sum += Math.sqrt(g2);
+        sum2 += g2;
+        l0 = c0; l1 = c1; l2 = c2;
+        c0 = r0; c1 = r1; c2 = r2;
+      }
+    }
+    sums[0] = sum;
+    sums[1] = sum2;
+  }
+
+  /** Streaming Sobel kernel of a 32-bit image.
+   * @see #sobelScalar(byte[], int, Rectangle, int, int, double[])
+   */
+  static void sobelScalar(float[] pixels, int width, Rectangle roi, int from, int to, double[] sums)
+  {
+    int w = roi.width;
+    int h = roi.height;
+    double sum = 0;
+    double sum2 = 0;
+    for (int y=from; y<to; y++)
+    {
+      int row = (roi.y+y)*width+roi.x;
+      int above = y>0?row-width:row;
+      int below = y<h-1?row+width:row;
+      double l0 = pixels[above], l1 = pixels[row], l2 = pixels[below];
+      double c0 = l0, c1 = l1, c2 = l2;
+      for (int x=0; x<w; x++)
+      {
+        int xr = x<w-1?x+1:x;
+        double r0 = pixels[above+xr];
+        double r1 = pixels[row+xr];
+        double r2 = pixels[below+xr];
+        double gy = l0+2*c0+r0-l2-2*c2-r2;
+        double gx = l0+2*l1+l2-r0-2*r1-r2;
+        double g2 = gx*gx+gy*gy;
+        sum += Math.sqrt(g2);
+        sum2 += g2;
+        l0 = c0; l1 = c1; l2 = c2;
+        c0 = r0; c1 = r1; c2 = r2;
+      }
+    }
+    sums[0] = sum;
+    sums[1] = sum2;
+  }
+  
+  /** Sobel kernel of a plane of a mapped file. Each stripe is read in blocks of
+   * rows, see {@link #MAPPED_BLOCK_PIXELS}: the rows of a block and the rows above
+   * and below it are copied into the row buffer of the {@link WindowFocusMetric.Workspace}
+   * and measured by the kernels of the pixel arrays.
+   * @param pixels a {@link ByteBuffer}, {@link ShortBuffer} or {@link FloatBuffer} of the plane
+   * @see #sobel(byte[], int, Rectangle, double[], ForkJoinPool)
+   */
+  static void sobel(final Buffer pixels, final int width, final Rectangle roi, double[] sums, ForkJoinPool pool)
+  {
+    stripes(roi, sums, new Stripe() {
+      @Override
+      public void measure(int from, int to, double[] sums)
+      {
+        WindowFocusMetric.Workspace workspace = WindowFocusMetric.Workspace.get();
+        int block = Math.max(1, MAPPED_BLOCK_PIXELS/width);
+        double[] blockSums = new double[2];
+        sums[0] = 0;
+        sums[1] = 0;
+        for (int b=from; b<to; b+=block)
+        {
+          int end = Math.min(b+block, to);
+          int y0 = roi.y+Math.max(b-1, 0);
+          int y1 = roi.y+Math.min(end+1, roi.height);
+          Object rows = workspace.copyRows(pixels, y0*width, (y1-y0)*width);
+          //The ROI is shifted to the first row of the halo, its borders are unchanged
+          sobel(rows, width, new Rectangle(roi.x, roi.y-y0, roi.width, roi.height), b, end, blockSums);
+          sums[0] += blockSums[0];
+          sums[1] += blockSums[1];
+        }
+      }
+    }, pool);
+  }
+
+  /** Sobel kernel over the rows <code>[from, to)</code> of the ROI of a <code>byte[]</code>,
+   * <code>short[]</code> or <code>float[]</code> pixel array, row-buffered when
+   * {@link #isVectorized()}, streaming otherwise.
+   * @see #sobelScalar(byte[], int, Rectangle, int, int, double[])
+   * @see #sobelVector(byte[], int, Rectangle, int, int, double[])
+   */
+  static void sobel(Object pixels, int width, Rectangle roi, int from, int to, double[] sums)
+  {
+    boolean vector = vectorized && roi.width>=3;
+    if (pixels instanceof byte[])
+    {
+      if (vector)
+        sobelVector((byte[])pixels, width, roi, from, to, sums);
+      else
+        sobelScalar((byte[])pixels, width, roi, from, to, sums);
+    }
+    else if (pixels instanceof short[])
+    {
+      if (vector)
+        sobelVector((short[])pixels, width, roi, from, to, sums);
+      else
+        sobelScalar((short[])pixels, width, roi, from, to, sums);
+    }
+    else if (vector)
+      sobelVector((float[])pixels, width, roi, from, to, sums);
+    else
+      sobelScalar((float[])pixels, width, roi, from, to, sums);
+  }
+
+  /** Row-buffered Sobel kernel of an 8-bit image, giving the same sums as
+   * {@link #sobelScalar(byte[], int, Rectangle, int, int, double[])}. The squared
+   * gradient of the inner columns of a row is computed with direct indexing
+   * into a row buffer, then square-rooted and summed in separate loops: none
+   * of these loops carries a dependency from one column to the next, so the
+   * JIT compiles them to SIMD instructions. Requires a ROI at least 3 pixels wide.
+   */
+  static void sobelVector(byte[] pixels, int width, Rectangle roi, int from, int to, double[] sums)
+  {
+    int w = roi.width;
+    int h = roi.height;
+    float[] energy = WindowFocusMetric.Workspace.get().getBuffer(w);
+    double sum = 0;
+    double sum2 = 0;
+    for (int y=from; y<to; y++)
+    {
+      int row = (roi.y+y)*width+roi.x;
+      int above = y>0?row-width:row;
+      int below = y<h-1?row+width:row;
+      for (int x=1; x<w-1; x++)
+      {
+        int a = above+x, c = row+x, b = below+x;
+        int gy = (pixels[a-1]&0xff)+2*(pixels[a]&0xff)+(pixels[a+1]&0xff)
+            -(pixels[b-1]&0xff)-2*(pixels[b]&0xff)-(pixels[b+1]&0xff);
+        int gx = (pixels[a-1]&0xff)+2*(pixels[c-1]&0xff)+(pixels[b-1]&0xff)
+            -(pixels[a+1]&0xff)-2*(pixels[c+1]&0xff)-(pixels[b+1]&0xff);
+        energy[x] = gx*gx+gy*gy;
+      }
+      energy[0] = sobelEnergy(pixels, above, row, below, 0, 0, 1);
+      energy[w-1] = sobelEnergy(pixels, above, row, below, w-2, w-1, w-1);
+      sum2 += sumRow(energy, w);
+      sqrtRow(energy, w);
+      sum += sumRow(energy, w);
+    }
+    sums[0] = sum;
+    sums[1] = sum2;
+  }
+
+  /** Row-buffered Sobel kernel of a 16-bit image.
+   * @see #sobelVector(byte[], int, Rectangle, int, int, double[])
+   */
+  static void sobelVector(short[] pixels, int width, Rectangle roi, int from, int to, double[] sums)
+  {
+    int w = roi.width;
+    int h = roi.height;
+    float[] energy = WindowFocusMetric.Workspace.get().getBuffer(w);
+    double sum = 0;
+    double sum2 = 0;
+    for (int y=from; y<to; y++)
+    {
+      int row = (roi.y+y)*width+roi.x;
+      int above = y>0?row-width:row;
+      int below = y<h-1?row+width:row;
+      for (int x=1; x<w-1; x++)
+      {
+        int a = above+x, c = row+x, b = below+x;
+        float gy = (pixels[a-1]&0xffff)+2*(pixels[a]&0xffff)+(pixels[a+1]&0xffff)
+            -(pixels[b-1]&0xffff)-2*(pixels[b]&0xffff)-(pixels[b+1]&0xffff);
+        float gx = (pixels[a-1]&0xffff)+2*(pixels[c-1]&0xffff)+(pixels[b-1]&0xffff)
+            -(pixels[a+1]&0xffff)-2*(pixels[c+1]&0xffff)-(pixels[b+1]&0xffff);
+        energy[x] = gx*gx+gy*gy;
+      }
+      energy[0] = sobelEnergy(pixels, above, row, below, 0, 0, 1);
+      energy[w-1] = sobelEnergy(pixels, above, row, below, w-2, w-1, w-1);
+      sum2 += sumRow(energy, w);
+      sqrtRow(energy, w);
+      sum += sumRow(energy, w);
+    }
+    sums[0] = sum;
+    sums[1] = sum2;
+  }
+
+  /** Row-buffered Sobel kernel of a 32-bit image.
+   * @see #sobelVector(byte[], int, Rectangle, int, int, double[])
+   */
+  static void sobelVector(float[] pixels, int width, Rectangle roi, int from, int to, double[] sums)
+  {
+    int w = roi.width;
+    int h = roi.height;
+    float[] energy = WindowFocusMetric.Workspace.get().getBuffer(w);
+    double sum = 0;
+    double sum2 = 0;
+    for (int y=from; y<to; y++)
+    {
+      int row = (roi.y+y)*width+roi.x;
+      int above = y>0?row-width:row;
+      int below = y<h-1?row+width:row;
+      for (int x=1; x<w-1; x++)
+      {
+        int a = above+x, c = row+x, b = below+x;
+        float gy = pixels[a-1]+2*pixels[a]+pixels[a+1]-pixels[b-1]-2*pixels[b]-pixels[b+1];
+        float gx = pixels[a-1]+2*pixels[c-1]+pixels[b-1]-pixels[a+1]-2*pixels[c+1]-pixels[b+1];
+        energy[x] = gx*gx+gy*gy;
+      }
+      energy[0] = sobelEnergy(pixels, above, row, below, 0, 0, 1);
+      energy[w-1] = sobelEnergy(pixels, above, row, below, w-2, w-1, w-1);
+      sum2 += sumRow(energy, w);
+      sqrtRow(energy, w);
+      sum += sumRow(energy, w);
+    }
+    sums[0] = sum;
+    sums[1] = sum2;
+  }
+
+  /** Squared Sobel gradient of one pixel, with <code>l</code> and <code>r</code>
+   * its (replicated) left and right columns. */
+  private static float sobelEnergy(byte[] pixels, int above, int row, int below, int l, int x, int r)
+  {
+    float gy = (pixels[above+l]&0xff)+2*(pixels[above+x]&0xff)+(pixels[above+r]&0xff)
+        -(pixels[below+l]&0xff)-2*(pixels[below+x]&0xff)-(pixels[below+r]&0xff);
+    float gx = (pixels[above+l]&0xff)+2*(pixels[row+l]&0xff)+(pixels[below+l]&0xff)
+        -(pixels[above+r]&0xff)-2*(pixels[row+r]&0xff)-(pixels[below+r]&0xff);
+    return gx*gx+gy*gy;
+  }
+
+  private static float sobelEnergy(short[] pixels, int above, int row, int below, int l, int x, int r)
+  {
+    float gy = (pixels[above+l]&0xffff)+2*(pixels[above+x]&0xffff)+(pixels[above+r]&0xffff)
+        -(pixels[below+l]&0xffff)-2*(pixels[below+x]&0xffff)-(pixels[below+r]&0xffff);
+    float gx = (pixels[above+l]&0xffff)+2*(pixels[row+l]&0xffff)+(pixels[below+l]&0xffff)
+        -(pixels[above+r]&0xffff)-2*(pixels[row+r]&0xffff)-(pixels[below+r]&0xffff);
+    return gx*gx+gy*gy;
+  }
+
+  private static float sobelEnergy(float[] pixels, int above, int row, int below, int l, int x, int r)
+  {
+    float gy = pixels[above+l]+2*pixels[above+x]+pixels[above+r]-pixels[below+l]-2*pixels[below+x]-pixels[below+r];
+    float gx = pixels[above+l]+2*pixels[row+l]+pixels[below+l]-pixels[above+r]-2*pixels[row+r]-pixels[below+r];
+    return gx*gx+gy*gy;
+  }
+
+  private static double sumRow(float[] row, int w)
+  {
+    double sum = 0;
+    for (int x=0; x<w; x++)
+      sum += row[x];
+    return sum;
+  }
+
+  private static void sqrtRow(float[] row, int w)
+  {
+    for (int x=0; x<w; x++)
+      row[x] = (float)Math.sqrt(row[x]);
+  }
+
+  /** A kernel measuring a horizontal stripe of the ROI. */
+  private interface Stripe
+  {
+    /**
+     * @param from the first row of the ROI in the stripe
+     * @param to the row of the ROI after the stripe
+     * @param sums receives the partial sums of the stripe
+     */
+    public void measure(int from, int to, double[] sums);
+  }
+
+  /** Measure the ROI in one go, or in stripes on the pool when it is large
+   * enough, and add the partial sums of the stripes in order.
+   * @param roi the region of the image to measure
+   * @param sums receives the sums over the whole ROI
+   * @param stripe the kernel
+   * @param pool the pool, <code>null</code> to measure the ROI on the calling thread
+   */
+  private static void stripes(Rectangle roi, double[] sums, final Stripe stripe, ForkJoinPool pool)
+  {
+    int h = roi.height;
+    int n = 1;
+    if (pool!=null && (double)roi.width*h>=STRIPE_MIN_PIXELS)
+      n = Math.min(pool.getParallelism(), h/STRIPE_MIN_ROWS);
+    if (n<=1)
+    {
+      stripe.measure(0, h, sums);
+      return;
+    }
+    final double[][] partial = new double[n][sums.length];
+    final RecursiveAction[] tasks = new RecursiveAction[n];
+    for (int i=0; i<n; i++)
+    {
+      final int from = (int)((long)i*h/n);
+      final int to = (int)((long)(i+1)*h/n);
+      final double[] partialSums = partial[i];
+      tasks[i] = new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute()
+        {
+          stripe.measure(from, to, partialSums);
+        }
+      };
+    }
+    //Inside a pool, e.g. when the timepoints are processed in parallel, the stripes are forked in it
+    if (ForkJoinTask.inForkJoinPool())
+      ForkJoinTask.invokeAll(tasks);
+    else
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute()
+        {
+          invokeAll(tasks);
+        }
+      });
+    Arrays.fill(sums, 0);
+    for (int i=0; i<n; i++)
+      for (int k=0; k<sums.length; k++)
+        sums[k] += partial[i][k];
   }
   
 //  /**
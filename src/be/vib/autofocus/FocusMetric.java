@@ -0,0 +1,45 @@
+package be.vib.autofocus;
+
+import java.awt.Rectangle;
+
+/**<p>
+ * A focus operator computing a relative Degree of Focus of one image plane.
+ * The higher the value, the better focused the plane.</p>
+ *
+ * <p>
+ * Implementations read the pixel array in place, inside the bounds of the
+ * <code>roi</code>, and do not create temporary images. They hold no state
+ * between calls and can be shared between threads.</p>
+ *
+ * <p>
+ * The operators of <code>fmeasure.m</code> are available from
+ * {@link FocusMetrics}, where new ones can be registered by name.</p>
+ *
+ * @see FocusMetrics
+ * @see FocusMeasure#getDegreeofFocus(ij.process.ImageProcessor, FocusMetric)
+ */
+public interface FocusMetric
+{
+  /**
+   * @return the name of the operator, as displayed in the dialog
+   */
+  public String getName();
+
+  /** Compute the Degree of Focus of an 8-bit plane.
+   * @param pixels the pixel array of the plane
+   * @param width the width of the plane
+   * @param roi the region of the plane to measure
+   * @return the relative degree of focus
+   */
+  public double measure(byte[] pixels, int width, Rectangle roi);
+
+  /** Compute the Degree of Focus of a 16-bit plane.
+   * @see #measure(byte[], int, Rectangle)
+   */
+  public double measure(short[] pixels, int width, Rectangle roi);
+
+  /** Compute the Degree of Focus of a 32-bit plane.
+   * @see #measure(byte[], int, Rectangle)
+   */
+  public double measure(float[] pixels, int width, Rectangle roi);
+}
@@ -0,0 +1,993 @@
+package be.vib.autofocus;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**<p>
+ * Registry of the {@link FocusMetric} operators, looked up by name or by
+ * their index in the dialog.</p>
+ *
+ * <p>
+ * The operators of
+ * <a href="http://www.mathworks.com/matlabcentral/fileexchange/27314-focus-measure/content//fmeasure/fmeasure.m">fmeasure.m</a>
+ * are registered by default. The three historical methods of
+ * {@link FocusMeasure} come first, so that {@link FocusMeasure#TENENGRAD},
+ * {@link FocusMeasure#TENENGRAD_VARIANCE} and {@link FocusMeasure#VOLLATH}
+ * remain valid indices:</p>
+ * <ul>
+ * <li>Tenengrad (TENG), Tenengrad Variance (TENV), Vollath (VOLA)</li>
+ * <li>Absolute Central Moment (ACMO), Brenner (BREN), Image Contrast (CONT), Image Curvature (CURV)</li>
+ * <li>DCT Energy Ratio (DCTE), DCT Reduced Energy Ratio (DCTR)</li>
+ * <li>Gaussian Derivative (GDER), Steerable Filters (SFIL)</li>
+ * <li>Gray-Level Variance (GLVA), Gray-Level Local Variance (GLLV), Normalized Gray-Level Variance (GLVN)</li>
+ * <li>Energy of Gradient (GRAE), Thresholded Gradient (GRAT), Squared Gradient (GRAS), Spatial Frequency (SFRQ)</li>
+ * <li>Helmli's Mean (HELM), Histogram Entropy (HISE), Histogram Range (HISR)</li>
+ * <li>Energy of Laplacian (LAPE), Modified Laplacian (LAPM), Variance of Laplacian (LAPV), Diagonal Laplacian (LAPD)</li>
+ * <li>Wavelet Sum (WAVS), Wavelet Variance (WAVV), Wavelet Ratio (WAVR)</li>
+ * </ul>
+ *
+ * <p>
+ * Differences with <code>fmeasure.m</code>: borders are replicated and finite
+ * differences are 0 on the last row and column, the DCT operators use
+ * non-overlapping 8x8 blocks instead of a sliding one, the wavelet operators
+ * use a one level Haar transform instead of <code>db6</code>, and the
+ * histograms of 16 and 32-bit planes have 256 bins spread between the minimum
+ * and maximum of the ROI.</p>
+ */
+public class FocusMetrics
+{
+  /** Width of the local windows of GLLV, HELM, GDER and SFIL, as in fmeasure.m */
+  public static final int WINDOW_SIZE = 15;
+
+  private static final ArrayList<FocusMetric> METRICS = new ArrayList<FocusMetric>();
+
+  static {
+    register(new Tenengrad("Tenengrad", PointwiseFocusMetric.MEAN));
+    register(new Tenengrad("Tenengrad Variance", PointwiseFocusMetric.VARIANCE));
+    register(new Vollath());
+    register(new HistogramMetric("Absolute Central Moment", HistogramMetric.CENTRAL_MOMENT));
+    register(new Brenner());
+    register(new ImageContrast());
+    register(new Curvature());
+    register(new DctMetric("DCT Energy Ratio", false));
+    register(new DctMetric("DCT Reduced Energy Ratio", true));
+    register(new GaussianDerivative("Gaussian Derivative", false));
+    register(new GrayLevel("Gray-Level Variance", PointwiseFocusMetric.STD_DEV));
+    register(new LocalVariance());
+    register(new GrayLevel("Normalized Gray-Level Variance", GrayLevel.NORMALIZED));
+    register(new Gradient("Energy of Gradient", Gradient.ENERGY));
+    register(new Gradient("Thresholded Gradient", Gradient.THRESHOLDED));
+    register(new Gradient("Squared Gradient", Gradient.SQUARED));
+    register(new Helmli());
+    register(new HistogramMetric("Histogram Entropy", HistogramMetric.ENTROPY));
+    register(new HistogramRange());
+    register(new Laplacian("Energy of Laplacian", Laplacian.ENERGY));
+    register(new Laplacian("Modified Laplacian", Laplacian.MODIFIED));
+    register(new Laplacian("Variance of Laplacian", Laplacian.VARIANCE_OF));
+    register(new Laplacian("Diagonal Laplacian", Laplacian.DIAGONAL));
+    register(new GaussianDerivative("Steerable Filters", true));
+    register(new Gradient("Spatial Frequency", Gradient.SPATIAL_FREQUENCY));
+    register(new Wavelet("Wavelet Sum", Wavelet.SUM));
+    register(new Wavelet("Wavelet Variance", Wavelet.VARIANCE));
+    register(new Wavelet("Wavelet Ratio", Wavelet.RATIO));
+  }
+
+  /** Register a focus operator, replacing the one with the same name if any.
+   * @param metric the operator
+   */
+  public static synchronized void register(FocusMetric metric)
+  {
+    int index = indexOf(metric.getName());
+    if (index<0)
+      METRICS.add(metric);
+    else
+      METRICS.set(index, metric);
+  }
+
+  /**
+   * @param name the name of the operator
+   * @return the operator, or <code>null</code> if none is registered with that name
+   */
+  public static synchronized FocusMetric get(String name)
+  {
+    int index = indexOf(name);
+    return index<0?null:METRICS.get(index);
+  }
+
+  /**
+   * @param index the index of the operator, as in {@link #getNames()}
+   * @return the operator
+   */
+  public static synchronized FocusMetric get(int index)
+  {
+    return METRICS.get(index);
+  }
+
+  /**
+   * @param name the name of an operator
+   * @return its index, or -1 if none is registered with that name
+   */
+  public static synchronized int indexOf(String name)
+  {
+    for (int i=0; i<METRICS.size(); i++)
+      if (METRICS.get(i).getName().equals(name))
+        return i;
+    return -1;
+  }
+
+  /**
+   * @return the names of the registered operators, in registration order
+   */
+  public static synchronized String[] getNames()
+  {
+    String[] names = new String[METRICS.size()];
+    for (int i=0; i<names.length; i++)
+      names[i] = METRICS.get(i).getName();
+    return names;
+  }
+
+  private static int clamp(int x, int last)
+  {
+    return x<0?0:(x>last?last:x);
+  }
+
+  /** Mean (TENG) or variance (TENV) of the Sobel gradient magnitude, using the
+   * dedicated kernels of {@link FocusMeasure} when measured alone. */
+  static class Tenengrad extends PointwiseFocusMetric
+  {
+    Tenengrad(String name, int statistic)
+    {
+      super(name, 1, statistic);
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      float[] up = window[center-1];
+      float[] dn = window[center+1];
+      float[] c = window[center];
+      int last = width-1;
+      for (int x=0; x<width; x++)
+      {
+        int l = x>0?x-1:0;
+        int r = x<last?x+1:last;
+        float gy = up[l]+2*up[x]+up[r]-dn[l]-2*dn[x]-dn[r];
+        float gx = up[l]+2*c[l]+dn[l]-up[r]-2*c[r]-dn[r];
+        response[x] = (float)Math.sqrt(gx*gx+gy*gy);
+      }
+    }
+
+    @Override
+    public double measure(byte[] pixels, int width, Rectangle roi)
+    {
+      double[] sums = new double[2];
+      FocusMeasure.sobel(pixels, width, roi, sums, null);
+      return getResult(sums, roi.width, roi.height);
+    }
+
+    @Override
+    public double measure(short[] pixels, int width, Rectangle roi)
+    {
+      double[] sums = new double[2];
+      FocusMeasure.sobel(pixels, width, roi, sums, null);
+      return getResult(sums, roi.width, roi.height);
+    }
+
+    @Override
+    public double measure(float[] pixels, int width, Rectangle roi)
+    {
+      double[] sums = new double[2];
+      FocusMeasure.sobel(pixels, width, roi, sums, null);
+      return getResult(sums, roi.width, roi.height);
+    }
+  }
+
+  /** Vollath's correlation (VOLA), using the dedicated kernels of
+   * {@link FocusMeasure} when measured alone. */
+  static class Vollath extends PointwiseFocusMetric
+  {
+    Vollath()
+    {
+      super("Vollath", 2, MEAN);
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      float[] c = window[center];
+      float[] below = window[center+1];
+      //Same border rule as FocusMeasure.vollath: I1 and I2 keep the original rows
+      float[] below2;
+      if (row<height-2)
+        below2 = window[center+2];
+      else if (row==height-2)
+        below2 = c;
+      else
+        below2 = below;
+      for (int x=0; x<width; x++)
+        response[x] = c[x]*(below[x]-below2[x]);
+    }
+
+    @Override
+    public double measure(byte[] pixels, int width, Rectangle roi)
+    {
+      return FocusMeasure.vollath(pixels, width, roi, null);
+    }
+
+    @Override
+    public double measure(short[] pixels, int width, Rectangle roi)
+    {
+      return FocusMeasure.vollath(pixels, width, roi, null);
+    }
+
+    @Override
+    public double measure(float[] pixels, int width, Rectangle roi)
+    {
+      return FocusMeasure.vollath(pixels, width, roi, null);
+    }
+  }
+
+  /** Brenner's measure (BREN): squared maximum of the horizontal and vertical
+   * differences between pixels two apart. */
+  static class Brenner extends PointwiseFocusMetric
+  {
+    Brenner()
+    {
+      super("Brenner", 2, MEAN);
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      float[] c = window[center];
+      float[] below2 = window[center+2];
+      boolean vertical = row<height-2;
+      for (int x=0; x<width; x++)
+      {
+        float dh = x<width-2?c[x+2]-c[x]:0;
+        float dv = vertical?below2[x]-c[x]:0;
+        float d = Math.max(dh, dv);
+        response[x] = d*d;
+      }
+    }
+  }
+
+  /** Image contrast (CONT): sum of the absolute differences between a pixel
+   * and its 8 neighbours. */
+  static class ImageContrast extends PointwiseFocusMetric
+  {
+    ImageContrast()
+    {
+      super("Image Contrast", 1, MEAN);
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      float[] up = window[center-1];
+      float[] dn = window[center+1];
+      float[] c = window[center];
+      int last = width-1;
+      for (int x=0; x<width; x++)
+      {
+        int l = x>0?x-1:0;
+        int r = x<last?x+1:last;
+        float v = c[x];
+        response[x] = Math.abs(up[l]-v)+Math.abs(up[x]-v)+Math.abs(up[r]-v)
+            +Math.abs(c[l]-v)+Math.abs(c[r]-v)
+            +Math.abs(dn[l]-v)+Math.abs(dn[x]-v)+Math.abs(dn[r]-v);
+      }
+    }
+  }
+
+  /** Image curvature (CURV): coefficients of a quadratic surface fitted on
+   * the 3x3 neighbourhood. */
+  static class Curvature extends PointwiseFocusMetric
+  {
+    Curvature()
+    {
+      super("Image Curvature", 1, MEAN);
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      float[] up = window[center-1];
+      float[] dn = window[center+1];
+      float[] c = window[center];
+      int last = width-1;
+      for (int x=0; x<width; x++)
+      {
+        int l = x>0?x-1:0;
+        int r = x<last?x+1:last;
+        float left = up[l]+c[l]+dn[l];
+        float right = up[r]+c[r]+dn[r];
+        float top = up[l]+up[x]+up[r];
+        float bottom = dn[l]+dn[x]+dn[r];
+        float p0 = (left-right)/6f;
+        float p1 = (top-bottom)/6f;
+        float p2 = 0.3f*(left+right)-0.2f*(top+bottom);
+        float p3 = -0.2f*(left+right)+0.3f*(top+bottom);
+        response[x] = Math.abs(p0)+Math.abs(p1)+Math.abs(p2)+Math.abs(p3);
+      }
+    }
+  }
+
+  /** DCT energy ratio (DCTE) and DCT reduced energy ratio (DCTR), averaged
+   * over the 8x8 blocks of the ROI. */
+  static class DctMetric extends WindowFocusMetric
+  {
+    private static final int N = 8;
+    /** Orthonormal DCT-II basis, as used by dct2: BASIS[u*N+x] */
+    private static final double[] BASIS = new double[N*N];
+    static {
+      for (int u=0; u<N; u++)
+        for (int x=0; x<N; x++)
+          BASIS[u*N+x] = (u==0?Math.sqrt(1.0/N):Math.sqrt(2.0/N))*Math.cos((2*x+1)*u*Math.PI/(2*N));
+    }
+
+    private final boolean reduced;
+
+    DctMetric(String name, boolean reduced)
+    {
+      super(name);
+      this.reduced = reduced;
+    }
+
+    @Override
+    int getRadius()
+    {
+      return N-1;
+    }
+
+    @Override
+    int getAccumulatorSize(int width)
+    {
+      return 2+2*N*N;
+    }
+
+    @Override
+    void accumulateRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] buffer)
+    {
+      if (row%N!=0 || row+N>height)
+        return;
+      int tmp = 2;
+      int coef = 2+N*N;
+      for (int bx=0; bx+N<=width; bx+=N)
+      {
+        //Columns first: tmp[u][x] = sum_y basis[u][y]*block[y][x]
+        for (int u=0; u<N; u++)
+          for (int x=0; x<N; x++)
+          {
+            double s = 0;
+            for (int y=0; y<N; y++)
+              s += BASIS[u*N+y]*window[center+y][bx+x];
+            acc[tmp+u*N+x] = s;
+          }
+        //Then rows: coef[u][v] = sum_x basis[v][x]*tmp[u][x]
+        double energy = 0;
+        for (int u=0; u<N; u++)
+          for (int v=0; v<N; v++)
+          {
+            double s = 0;
+            for (int x=0; x<N; x++)
+              s += BASIS[v*N+x]*acc[tmp+u*N+x];
+            acc[coef+u*N+v] = s*s;
+            energy += s*s;
+          }
+        double dc = acc[coef];
+        if (dc==0)
+          continue;
+        double ratio;
+        if (reduced)
+          ratio = (acc[coef+1]+acc[coef+2]+acc[coef+N]+acc[coef+N+1]+acc[coef+2*N])/dc;
+        else
+          ratio = (energy-dc)/dc;
+        acc[0] += ratio;
+        acc[1]++;
+      }
+    }
+
+    @Override
+    double getResult(double[] acc, int width, int height)
+    {
+      return acc[1]>0?acc[0]/acc[1]:0;
+    }
+  }
+
+  /** Gaussian derivative (GDER) and steerable filters (SFIL). Both filter the
+   * plane with the x and y derivatives of a Gaussian of size {@link #WINDOW_SIZE},
+   * applied as separable filters. GDER averages the energy of the two
+   * responses, SFIL the maximum of the responses steered every 45 degrees. */
+  static class GaussianDerivative extends PointwiseFocusMetric
+  {
+    private static final int RADIUS = WINDOW_SIZE/2;
+    private static final double[] GAUSSIAN = new double[2*RADIUS+1];
+    private static final double[] DERIVATIVE = new double[2*RADIUS+1];
+    private static final double COS45 = Math.sqrt(0.5);
+    static {
+      double sigma = RADIUS/2.5;
+      double sumGaussian = 0;
+      double sumDerivative = 0;
+      for (int k=-RADIUS; k<=RADIUS; k++)
+      {
+        double g = Math.exp(-k*k/(2*sigma*sigma));
+        GAUSSIAN[k+RADIUS] = g;
+        DERIVATIVE[k+RADIUS] = -k*g/(sigma*sigma);
+        sumGaussian += g;
+        sumDerivative += Math.abs(DERIVATIVE[k+RADIUS]);
+      }
+      //Normalized as in fmeasure.m, Gx/sum(abs(Gx(:))) of the 2D filter
+      for (int k=0; k<GAUSSIAN.length; k++)
+      {
+        GAUSSIAN[k] /= sumGaussian;
+        DERIVATIVE[k] /= sumDerivative;
+      }
+    }
+
+    private final boolean steerable;
+
+    GaussianDerivative(String name, boolean steerable)
+    {
+      super(name, RADIUS, MEAN);
+      this.steerable = steerable;
+    }
+
+    @Override
+    int getAccumulatorSize(int width)
+    {
+      return SCRATCH+2*width;
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      int smooth = SCRATCH;
+      int derive = SCRATCH+width;
+      for (int x=0; x<width; x++)
+      {
+        double s = 0;
+        double d = 0;
+        for (int k=-RADIUS; k<=RADIUS; k++)
+        {
+          float v = window[center+k][x];
+          s += GAUSSIAN[k+RADIUS]*v;
+          d += DERIVATIVE[k+RADIUS]*v;
+        }
+        acc[smooth+x] = s;
+        acc[derive+x] = d;
+      }
+      int last = width-1;
+      for (int x=0; x<width; x++)
+      {
+        double rx = 0;
+        double ry = 0;
+        for (int k=-RADIUS; k<=RADIUS; k++)
+        {
+          int xk = clamp(x+k, last);
+          rx += DERIVATIVE[k+RADIUS]*acc[smooth+xk];
+          ry += GAUSSIAN[k+RADIUS]*acc[derive+xk];
+        }
+        if (steerable)
+        {
+          double diagonal = COS45*Math.max(Math.abs(rx+ry), Math.abs(rx-ry));
+          response[x] = (float)Math.max(Math.max(Math.abs(rx), Math.abs(ry)), diagonal);
+        }
+        else
+          response[x] = (float)(rx*rx+ry*ry);
+      }
+    }
+  }
+
+  /** Gray-level variance (GLVA, the standard deviation of the ROI as in
+   * fmeasure.m) and normalized gray-level variance (GLVN). */
+  static class GrayLevel extends PointwiseFocusMetric
+  {
+    static final int NORMALIZED = -1;
+
+    private final boolean normalized;
+
+    GrayLevel(String name, int statistic)
+    {
+      super(name, 0, statistic==NORMALIZED?VARIANCE:statistic);
+      normalized = statistic==NORMALIZED;
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      System.arraycopy(window[center], 0, response, 0, width);
+    }
+
+    @Override
+    double getResult(double[] acc, int width, int height)
+    {
+      double result = super.getResult(acc, width, height);
+      if (!normalized)
+        return result;
+      double mean = acc[0]/((double)width*height);
+      return mean!=0?result/mean:0;
+    }
+  }
+
+  /** Sum of the {@link #WINDOW_SIZE}x{@link #WINDOW_SIZE} neighbourhood of
+   * each pixel of the row, from column sums updated from one row to the next.
+   * The <code>width</code> column sums are kept in <code>acc</code> from
+   * <code>columns</code> on, followed by the column sums of squares if
+   * <code>squares</code>. The sums of the row are written from <code>sums</code>
+   * on, followed by the sums of squares if <code>squares</code>.
+   * @param window the window of rows, of radius at least <code>WINDOW_SIZE/2+1</code>
+   */
+  static void boxSums(float[][] window, int center, int row, int width, double[] acc, int columns, int sums, boolean squares)
+  {
+    int radius = WINDOW_SIZE/2;
+    int columns2 = columns+width;
+    int sums2 = sums+width;
+    if (row==0)
+    {
+      for (int x=0; x<width; x++)
+      {
+        double s = 0;
+        double s2 = 0;
+        for (int k=-radius; k<=radius; k++)
+        {
+          double v = window[center+k][x];
+          s += v;
+          s2 += v*v;
+        }
+        acc[columns+x] = s;
+        if (squares)
+          acc[columns2+x] = s2;
+      }
+    }
+    else
+    {
+      //Slide the columns down: add the row entering the box, remove the one leaving it
+      float[] in = window[center+radius];
+      float[] out = window[center-radius-1];
+      for (int x=0; x<width; x++)
+      {
+        acc[columns+x] += in[x]-out[x];
+        if (squares)
+          acc[columns2+x] += (double)in[x]*in[x]-(double)out[x]*out[x];
+      }
+    }
+    int last = width-1;
+    double s = 0;
+    double s2 = 0;
+    for (int k=-radius; k<=radius; k++)
+    {
+      int xk = clamp(k, last);
+      s += acc[columns+xk];
+      if (squares)
+        s2 += acc[columns2+xk];
+    }
+    for (int x=0; x<width; x++)
+    {
+      acc[sums+x] = s;
+      if (squares)
+        acc[sums2+x] = s2;
+      int in = clamp(x+radius+1, last);
+      int out = clamp(x-radius, last);
+      s += acc[columns+in]-acc[columns+out];
+      if (squares)
+        s2 += acc[columns2+in]-acc[columns2+out];
+    }
+  }
+
+  /** Gray-level local variance (GLLV): variance over the ROI of the local
+   * variance in a {@link #WINDOW_SIZE}x{@link #WINDOW_SIZE} neighbourhood. */
+  static class LocalVariance extends PointwiseFocusMetric
+  {
+    LocalVariance()
+    {
+      super("Gray-Level Local Variance", WINDOW_SIZE/2+1, VARIANCE);
+    }
+
+    @Override
+    int getAccumulatorSize(int width)
+    {
+      return SCRATCH+4*width;
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      int sums = SCRATCH+2*width;
+      int sums2 = sums+width;
+      boxSums(window, center, row, width, acc, SCRATCH, sums, true);
+      double n = WINDOW_SIZE*WINDOW_SIZE;
+      for (int x=0; x<width; x++)
+        response[x] = (float)FocusMeasure.variance(acc[sums+x], acc[sums2+x], n);
+    }
+  }
+
+  /** Helmli's mean method (HELM): ratio between each pixel and the mean of
+   * its {@link #WINDOW_SIZE}x{@link #WINDOW_SIZE} neighbourhood. */
+  static class Helmli extends PointwiseFocusMetric
+  {
+    Helmli()
+    {
+      super("Helmli's Mean", WINDOW_SIZE/2+1, MEAN);
+    }
+
+    @Override
+    int getAccumulatorSize(int width)
+    {
+      return SCRATCH+2*width;
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      int sums = SCRATCH+width;
+      boxSums(window, center, row, width, acc, SCRATCH, sums, false);
+      float[] c = window[center];
+      double n = WINDOW_SIZE*WINDOW_SIZE;
+      for (int x=0; x<width; x++)
+      {
+        double mean = acc[sums+x]/n;
+        double v = c[x];
+        if (v==0 || mean==0)
+          response[x] = 1;
+        else
+          response[x] = (float)(mean>v?mean/v:v/mean);
+      }
+    }
+  }
+
+  /** Operators on the first differences of the plane: energy of gradient
+   * (GRAE), thresholded absolute gradient (GRAT, threshold 0), squared
+   * gradient (GRAS) and spatial frequency (SFRQ). */
+  static class Gradient extends PointwiseFocusMetric
+  {
+    static final int ENERGY = 0;
+    static final int THRESHOLDED = 1;
+    static final int SQUARED = 2;
+    static final int SPATIAL_FREQUENCY = 3;
+
+    private final int type;
+
+    Gradient(String name, int type)
+    {
+      super(name, 1, MEAN);
+      this.type = type;
+    }
+
+    @Override
+    int getAccumulatorSize(int width)
+    {
+      return 3;
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      float[] c = window[center];
+      float[] dn = window[center+1];
+      boolean vertical = row<height-1;
+      int last = width-1;
+      for (int x=0; x<width; x++)
+      {
+        float ix = x<last?c[x+1]-c[x]:0;
+        float iy = vertical?dn[x]-c[x]:0;
+        switch (type) {
+        case THRESHOLDED:
+          response[x] = Math.max(Math.abs(ix), Math.abs(iy));
+          break;
+        case SQUARED:
+          response[x] = ix*ix;
+          break;
+        case SPATIAL_FREQUENCY:
+          response[x] = (float)Math.sqrt(ix*ix+iy*iy);
+          break;
+        default:
+          response[x] = ix*ix+iy*iy;
+          break;
+        }
+      }
+    }
+
+    @Override
+    void accumulateRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] buffer)
+    {
+      super.accumulateRow(window, center, row, width, height, acc, buffer);
+      if (type==THRESHOLDED)
+        for (int x=0; x<width; x++)
+          if (buffer[x]>0)
+            acc[2]++;
+    }
+
+    @Override
+    double getResult(double[] acc, int width, int height)
+    {
+      switch (type) {
+      case THRESHOLDED:
+        return acc[2]>0?acc[0]/acc[2]:0;
+      case SQUARED:
+        return width>1?acc[0]/((double)(width-1)*height):0;
+      default:
+        return super.getResult(acc, width, height);
+      }
+    }
+  }
+
+  /** Laplacian based operators: energy of Laplacian (LAPE), modified
+   * Laplacian (LAPM), variance of Laplacian (LAPV) and diagonal Laplacian (LAPD). */
+  static class Laplacian extends PointwiseFocusMetric
+  {
+    static final int ENERGY = 0;
+    static final int MODIFIED = 1;
+    static final int VARIANCE_OF = 2;
+    static final int DIAGONAL = 3;
+
+    private static final float SQRT2 = (float)Math.sqrt(2);
+
+    private final int type;
+
+    Laplacian(String name, int type)
+    {
+      super(name, 1, type==VARIANCE_OF?VARIANCE:MEAN);
+      this.type = type;
+    }
+
+    @Override
+    void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response)
+    {
+      float[] up = window[center-1];
+      float[] dn = window[center+1];
+      float[] c = window[center];
+      int last = width-1;
+      for (int x=0; x<width; x++)
+      {
+        int l = x>0?x-1:0;
+        int r = x<last?x+1:last;
+        float v = c[x];
+        if (type==ENERGY || type==VARIANCE_OF)
+        {
+          //fspecial('laplacian') with alpha 0.2
+          float lap = (up[l]+up[r]+dn[l]+dn[r])/6f+(up[x]+dn[x]+c[l]+c[r])*2f/3f-v*10f/3f;
+          response[x] = type==ENERGY?lap*lap:lap;
+        }
+        else
+        {
+          float f = Math.abs(2*v-c[l]-c[r])+Math.abs(2*v-up[x]-dn[x]);
+          if (type==DIAGONAL)
+            f += (Math.abs(2*v-up[r]-dn[l])+Math.abs(2*v-up[l]-dn[r]))/SQRT2;
+          response[x] = f;
+        }
+      }
+    }
+  }
+
+  /** Wavelet operators computed on the one level Haar transform of the 2x2
+   * blocks of the ROI: sum of the absolute detail coefficients (WAVS), sum of
+   * their variances (WAVV), and ratio of detail to approximation energy (WAVR). */
+  static class Wavelet extends WindowFocusMetric
+  {
+    static final int SUM = 0;
+    static final int VARIANCE = 1;
+    static final int RATIO = 2;
+
+    private final int type;
+
+    Wavelet(String name, int type)
+    {
+      super(name);
+      this.type = type;
+    }
+
+    @Override
+    int getRadius()
+    {
+      return 1;
+    }
+
+    @Override
+    int getAccumulatorSize(int width)
+    {
+      //count, then sum and sum of squares of each detail band, then approximation energy
+      return 8;
+    }
+
+    @Override
+    void accumulateRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] buffer)
+    {
+      if (row%2!=0 || row+1>=height)
+        return;
+      float[] top = window[center];
+      float[] bottom = window[center+1];
+      for (int x=0; x+1<width; x+=2)
+      {
+        float a = top[x], b = top[x+1], c = bottom[x], d = bottom[x+1];
+        double approximation = (a+b+c+d)/2.0;
+        double horizontal = Math.abs(a+b-c-d)/2.0;
+        double vertical = Math.abs(a-b+c-d)/2.0;
+        double diagonal = Math.abs(a-b-c+d)/2.0;
+        acc[0]++;
+        acc[1] += horizontal;
+        acc[2] += horizontal*horizontal;
+        acc[3] += vertical;
+        acc[4] += vertical*vertical;
+        acc[5] += diagonal;
+        acc[6] += diagonal*diagonal;
+        acc[7] += approximation*approximation;
+      }
+    }
+
+    @Override
+    double getResult(double[] acc, int width, int height)
+    {
+      double n = acc[0];
+      if (n==0)
+        return 0;
+      switch (type) {
+      case VARIANCE:
+        return FocusMeasure.variance(acc[1], acc[2], n)+FocusMeasure.variance(acc[3], acc[4], n)
+            +FocusMeasure.variance(acc[5], acc[6], n);
+      case RATIO:
+        return acc[7]>0?(acc[2]+acc[4]+acc[6])/acc[7]:0;
+      default:
+        return (acc[1]+acc[3]+acc[5])/n;
+      }
+    }
+  }
+
+  /** Histogram range (HISR): difference between the maximum and minimum of the ROI. */
+  static class HistogramRange extends WindowFocusMetric
+  {
+    HistogramRange()
+    {
+      super("Histogram Range");
+    }
+
+    @Override
+    int getRadius()
+    {
+      return 0;
+    }
+
+    @Override
+    void accumulateRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] buffer)
+    {
+      float[] c = window[center];
+      double min = row==0?Double.MAX_VALUE:acc[0];
+      double max = row==0?-Double.MAX_VALUE:acc[1];
+      for (int x=0; x<width; x++)
+      {
+        if (c[x]<min)
+          min = c[x];
+        if (c[x]>max)
+          max = c[x];
+      }
+      acc[0] = min;
+      acc[1] = max;
+    }
+
+    @Override
+    double getResult(double[] acc, int width, int height)
+    {
+      return acc[1]-acc[0];
+    }
+  }
+
+  /** Operators on the 256 bins histogram of the ROI: absolute central moment
+   * (ACMO) and histogram entropy (HISE). 8-bit planes use one bin per gray
+   * level, 16 and 32-bit planes 256 bins between the minimum and maximum of the
+   * ROI, which takes a second read of the ROI. */
+  static class HistogramMetric implements FocusMetric
+  {
+    static final int CENTRAL_MOMENT = 0;
+    static final int ENTROPY = 1;
+    static final int BINS = 256;
+
+    private static final ThreadLocal<int[]> HISTOGRAM = new ThreadLocal<int[]>() {
+      @Override
+      protected int[] initialValue()
+      {
+        return new int[BINS];
+      }
+    };
+
+    private final String name;
+    private final int type;
+
+    HistogramMetric(String name, int type)
+    {
+      this.name = name;
+      this.type = type;
+    }
+
+    @Override
+    public String getName()
+    {
+      return name;
+    }
+
+    @Override
+    public double measure(byte[] pixels, int width, Rectangle roi)
+    {
+      int[] histogram = HISTOGRAM.get();
+      Arrays.fill(histogram, 0);
+      for (int y=roi.y; y<roi.y+roi.height; y++)
+        for (int x=y*width+roi.x, end=x+roi.width; x<end; x++)
+          histogram[pixels[x]&0xff]++;
+      return fromHistogram(histogram, (double)roi.width*roi.height);
+    }
+
+    @Override
+    public double measure(short[] pixels, int width, Rectangle roi)
+    {
+      int min = 0xffff;
+      int max = 0;
+      for (int y=roi.y; y<roi.y+roi.height; y++)
+        for (int x=y*width+roi.x, end=x+roi.width; x<end; x++)
+        {
+          int v = pixels[x]&0xffff;
+          if (v<min)
+            min = v;
+          if (v>max)
+            max = v;
+        }
+      double scale = max>min?(BINS-1)/(double)(max-min):0;
+      int[] histogram = HISTOGRAM.get();
+      Arrays.fill(histogram, 0);
+      for (int y=roi.y; y<roi.y+roi.height; y++)
+        for (int x=y*width+roi.x, end=x+roi.width; x<end; x++)
+          histogram[(int)(((pixels[x]&0xffff)-min)*scale)]++;
+      return fromHistogram(histogram, (double)roi.width*roi.height);
+    }
+
+    @Override
+    public double measure(float[] pixels, int width, Rectangle roi)
+    {
+      float min = Float.MAX_VALUE;
+      float max = -Float.MAX_VALUE;
+      for (int y=roi.y; y<roi.y+roi.height; y++)
+        for (int x=y*width+roi.x, end=x+roi.width; x<end; x++)
+        {
+          float v = pixels[x];
+          if (v<min)
+            min = v;
+          if (v>max)
+            max = v;
+        }
+      double scale = max>min?(BINS-1)/((double)max-min):0;
+      int[] histogram = HISTOGRAM.get();
+      Arrays.fill(histogram, 0);
+      for (int y=roi.y; y<roi.y+roi.height; y++)
+        for (int x=y*width+roi.x, end=x+roi.width; x<end; x++)
+        {
+          int bin = (int)((pixels[x]-min)*scale);
+          histogram[bin<0?0:(bin>=BINS?BINS-1:bin)]++;
+        }
+      return fromHistogram(histogram, (double)roi.width*roi.height);
+    }
+
+    private double fromHistogram(int[] histogram, double n)
+    {
+      if (n==0)
+        return 0;
+      if (type==ENTROPY)
+      {
+        double entropy = 0;
+        for (int k=0; k<BINS; k++)
+          if (histogram[k]>0)
+          {
+            double p = histogram[k]/n;
+            entropy -= p*Math.log(p);
+          }
+        return entropy/Math.log(2);
+      }
+      double mean = 0;
+      for (int k=0; k<BINS; k++)
+        mean += k*(double)histogram[k];
+      mean /= n;
+      double moment = 0;
+      for (int k=0; k<BINS; k++)
+        moment += Math.abs(k-mean)*histogram[k];
+      return moment/n;
+    }
+  }
+}
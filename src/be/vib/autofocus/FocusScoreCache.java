@@ -0,0 +1,151 @@
+package be.vib.autofocus;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**<p>
+ * In-memory cache of the focus curves of the open images, so the planes
+ * already scored by a run are not scored again by the next ones, for another
+ * projection or channel selection of the same image.</p>
+ *
+ * <p>
+ * The curves are keyed by image ID, channel, focus operator, ROI and pyramid
+ * level, 0 for the planes scored at full resolution. The
+ * curves of an image are dropped when it is closed, when it is updated
+ * after being modified (its <code>changes</code> flag is set) and when its
+ * dimensions change. Code modifying the pixels without setting the flag
+ * must call {@link #invalidate(ImagePlus)}.</p>
+ */
+public class FocusScoreCache implements ImageListener
+{
+  private static final FocusScoreCache INSTANCE = new FocusScoreCache();
+
+  private final Map<Key, double[][]> curves = new HashMap<Key, double[][]>();
+  private boolean listening = false;
+
+  /**
+   * @return the cache shared by the plugin runs
+   */
+  public static FocusScoreCache getInstance()
+  {
+    return INSTANCE;
+  }
+
+  /** The cached focus curves of one channel of an image. The planes not
+   * scored yet are <code>NaN</code>; the caller stores the scores it
+   * computes in the curves.
+   * @param imp the hyperstack
+   * @param channel the channel (1-based)
+   * @param metric the focus operator
+   * @param roi the region the planes are scored on
+   * @return the focus curves, indexed [t-1][z-1]
+   */
+  public double[][] getCurves(ImagePlus imp, int channel, FocusMetric metric, Rectangle roi)
+  {
+    return getCurves(imp, channel, metric, roi, 0);
+  }
+
+  /** The cached coarse focus curves of one channel of an image, scored on
+   * planes binned for a level of the pyramid.
+   * @param level the pyramid level, the planes being binned by <code>2^level</code>;
+   * 0 for the full resolution curves
+   * @see #getCurves(ImagePlus, int, FocusMetric, Rectangle)
+   * @see Auto_Focus#setPyramidDepth(int)
+   */
+  public synchronized double[][] getCurves(ImagePlus imp, int channel, FocusMetric metric, Rectangle roi, int level)
+  {
+    if (!listening)
+    {
+      ImagePlus.addImageListener(this);
+      listening = true;
+    }
+    Key key = new Key(imp.getID(), channel, metric.getName(), roi, level);
+    double[][] cached = curves.get(key);
+    int tNumber = imp.getNFrames();
+    int zNumber = imp.getNSlices();
+    if (cached==null || cached.length!=tNumber || cached[0].length!=zNumber)
+    {
+      cached = new double[tNumber][zNumber];
+      for (int t=0; t<tNumber; t++)
+        Arrays.fill(cached[t], Double.NaN);
+      curves.put(key, cached);
+    }
+    return cached;
+  }
+
+  /** Drop the curves of an image.
+   * @param imp the image
+   */
+  public synchronized void invalidate(ImagePlus imp)
+  {
+    int id = imp.getID();
+    for (Iterator<Key> keys = curves.keySet().iterator(); keys.hasNext(); )
+      if (keys.next().imageID==id)
+        keys.remove();
+  }
+
+  /** Drop every curve. */
+  public synchronized void clear()
+  {
+    curves.clear();
+  }
+
+  @Override
+  public void imageOpened(ImagePlus imp)
+  {
+  }
+
+  @Override
+  public void imageClosed(ImagePlus imp)
+  {
+    invalidate(imp);
+  }
+
+  @Override
+  public void imageUpdated(ImagePlus imp)
+  {
+    //Updates are also sent when the displayed slice changes: only edits drop the curves
+    if (imp.changes)
+      invalidate(imp);
+  }
+
+  private static class Key
+  {
+    final int imageID;
+    final int channel;
+    final String metric;
+    final Rectangle roi;
+    final int level;
+
+    Key(int imageID, int channel, String metric, Rectangle roi, int level)
+    {
+      this.level = level;
+      this.imageID = imageID;
+      this.channel = channel;
+      this.metric = metric;
+      this.roi = new Rectangle(roi);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key))
+        return false;
+      Key key = (Key)o;
+      return imageID==key.imageID && channel==key.channel
+          && metric.equals(key.metric) && roi.equals(key.roi) && level==key.level;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (((imageID*31+channel)*31+metric.hashCode())*31+roi.hashCode())*31+level;
+    }
+  }
+}
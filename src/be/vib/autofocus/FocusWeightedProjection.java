@@ -0,0 +1,200 @@
+package be.vib.autofocus;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**<p>
+ * Z projection of the fluorescent channels of one timepoint weighted by the
+ * focus of the brightfield: each plane counts in proportion to its focus
+ * score above the lowest score of the Z-stack, so the in-focus planes
+ * dominate and the planes out of focus do not count.</p>
+ *
+ * <p>
+ * The Z-stack is read once: each brightfield plane is scored and the
+ * fluorescent planes of the same slice are accumulated right away. As the
+ * lowest score is only known at the end, the weighted sum and the plain sum
+ * of the intensities are kept, and the lowest score is subtracted from the
+ * weights once the last plane is read. Whole planes are weighted by their
+ * focus curve, so the planes already scored, e.g. by the search of the best
+ * focus plane, are not read again.</p>
+ *
+ * <p>
+ * With a grid of tiles, each tile of a plane is scored from the per-pixel
+ * response of a {@link FocusMeasure#hasFocusResponse(FocusMetric) pointwise operator},
+ * and the weights are interpolated bilinearly between the tile centres, so a
+ * tilted specimen is projected from its in-focus planes everywhere without
+ * seams at the tile borders. The tiles are scored in a separate pass over
+ * the brightfield, as their scores are not the ones of the focus curve.</p>
+ */
+public class FocusWeightedProjection
+{
+  private final FocusMetric metric;
+  private final int tilesX;
+  private final int tilesY;
+  private final ForkJoinPool pool;
+
+  /**
+   * @param metric the focus operator
+   * @param tilesX the number of tiles along X, 1 to weight whole planes
+   * @param tilesY the number of tiles along Y, 1 to weight whole planes
+   * @throws IllegalArgumentException if the planes are tiled and the operator has no per-pixel response
+   */
+  public FocusWeightedProjection(FocusMetric metric, int tilesX, int tilesY)
+  {
+    this(metric, tilesX, tilesY, null);
+  }
+
+  /**
+   * @param metric the focus operator
+   * @param tilesX the number of tiles along X, 1 to weight whole planes
+   * @param tilesY the number of tiles along Y, 1 to weight whole planes
+   * @param pool the pool the stripes of large planes are scored on, <code>null</code> to score them on the calling thread
+   * @throws IllegalArgumentException if the planes are tiled and the operator has no per-pixel response
+   */
+  public FocusWeightedProjection(FocusMetric metric, int tilesX, int tilesY, ForkJoinPool pool)
+  {
+    this.pool = pool;
+    this.tilesX = Math.max(tilesX, 1);
+    this.tilesY = Math.max(tilesY, 1);
+    if (isTiled() && !FocusMeasure.hasFocusResponse(metric))
+      throw new IllegalArgumentException(metric.getName()+" has no per-pixel focus response");
+    this.metric = metric;
+  }
+
+  private boolean isTiled()
+  {
+    return tilesX*tilesY>1;
+  }
+
+  /** Project the fluorescent channels of one timepoint, scoring every brightfield plane.
+   * @see #process(PlaneSource, int, int[], int, double[])
+   */
+  public ImageProcessor[] process(PlaneSource source, int brightfieldChannel, int[] channels, int t)
+  {
+    return process(source, brightfieldChannel, channels, t, null);
+  }
+
+  /** Project the fluorescent channels of one timepoint.
+   * @param source the planes of the hyperstack
+   * @param brightfieldChannel the channel scored (1-based)
+   * @param channels the channels projected (1-based)
+   * @param t the timepoint (1-based)
+   * @param curve the focus curve of the brightfield: the score of each plane,
+   * <code>NaN</code> for the planes not scored yet, which are scored and stored
+   * in it; or <code>null</code>. Not used when the planes are tiled.
+   * @return one projection per channel, of the type of the source
+   */
+  public ImageProcessor[] process(PlaneSource source, int brightfieldChannel, int[] channels, int t, double[] curve)
+  {
+    int width = source.getWidth();
+    int height = source.getHeight();
+    int size = width*height;
+    int zNumber = source.getNSlices();
+    int nTiles = tilesX*tilesY;
+    double[][] weighted = new double[channels.length][size];
+    double[][] sums = new double[channels.length][size];
+    double[] weightSum = new double[size];
+    float[] weights = new float[size];
+    double[] scores = new double[nTiles];
+    double[] lowest = new double[nTiles];
+    Arrays.fill(lowest, Double.POSITIVE_INFINITY);
+    float[] response = null;
+    double[] integral = null;
+    double[] integral2 = null;
+    if (isTiled())
+    {
+      response = new float[size];
+      integral = new double[(width+1)*(height+1)];
+      if (FocusMeasure.isVarianceOfResponse(metric))
+        integral2 = new double[(width+1)*(height+1)];
+    }
+
+    for (int z=1; z<=zNumber; z++)
+    {
+      if (isTiled())
+      {
+        ImageProcessor bf = source.getProcessor(brightfieldChannel, z, t);
+        FocusMeasure.getFocusResponse(bf, metric, response);
+        FocusMeasure.integralImage(response, width, height, integral, integral2);
+        FocusMeasure.getTileScores(integral, integral2, width, height, tilesX, tilesY, scores);
+      }
+      else if (curve!=null && !Double.isNaN(curve[z-1]))
+        scores[0] = curve[z-1];
+      else
+      {
+        scores[0] = FocusMeasure.getDegreeofFocus(source, brightfieldChannel, z, t, metric, pool);
+        if (curve!=null)
+          curve[z-1] = scores[0];
+      }
+      for (int i=0; i<nTiles; i++)
+        lowest[i] = Math.min(lowest[i], scores[i]);
+      interpolate(scores, width, height, weights);
+      for (int i=0; i<size; i++)
+        weightSum[i] += weights[i];
+      for (int c=0; c<channels.length; c++)
+      {
+        ImageProcessor ip = source.getProcessor(channels[c], z, t);
+        double[] weightedC = weighted[c];
+        double[] sumsC = sums[c];
+        for (int i=0; i<size; i++)
+        {
+          float value = ip.getf(i);
+          weightedC[i] += (double)weights[i]*value;
+          sumsC[i] += value;
+        }
+      }
+    }
+
+    //Weights relative to the lowest score: sum((s-m)*I) = sum(s*I)-m*sum(I)
+    interpolate(lowest, width, height, weights);
+    ImageProcessor[] projections = new ImageProcessor[channels.length];
+    for (int c=0; c<channels.length; c++)
+    {
+      float[] pixels = new float[size];
+      for (int i=0; i<size; i++)
+      {
+        double total = weightSum[i]-weights[i]*zNumber;
+        //Planes equally in focus are averaged
+        if (total>0)
+          pixels[i] = (float)((weighted[c][i]-weights[i]*sums[c][i])/total);
+        else
+          pixels[i] = (float)(sums[c][i]/zNumber);
+      }
+      FloatProcessor fp = new FloatProcessor(width, height, pixels, null);
+      projections[c] = StreamingAutoFocus.convert(fp, source.getBitDepth());
+      projections[c].resetMinAndMax();
+    }
+    return projections;
+  }
+
+  /** Interpolate the values of the tiles bilinearly between their centres,
+   * and extend them to the borders. */
+  private void interpolate(double[] tiles, int width, int height, float[] values)
+  {
+    if (!isTiled())
+    {
+      Arrays.fill(values, (float)tiles[0]);
+      return;
+    }
+    for (int y=0; y<height; y++)
+    {
+      double fy = Math.min(Math.max((y+0.5)*tilesY/height-0.5, 0), tilesY-1);
+      int i0 = (int)fy;
+      int i1 = Math.min(i0+1, tilesY-1);
+      double ay = fy-i0;
+      for (int x=0; x<width; x++)
+      {
+        double fx = Math.min(Math.max((x+0.5)*tilesX/width-0.5, 0), tilesX-1);
+        int j0 = (int)fx;
+        int j1 = Math.min(j0+1, tilesX-1);
+        double ax = fx-j0;
+        double top = tiles[i0*tilesX+j0]+ax*(tiles[i0*tilesX+j1]-tiles[i0*tilesX+j0]);
+        double bottom = tiles[i1*tilesX+j0]+ax*(tiles[i1*tilesX+j1]-tiles[i1*tilesX+j0]);
+        values[y*width+x] = (float)(top+ay*(bottom-top));
+      }
+    }
+  }
+}
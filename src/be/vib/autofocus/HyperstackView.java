@@ -0,0 +1,163 @@
+package be.vib.autofocus;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**<p>
+ * A read-only view of the planes of a hyperstack, addressed by channel,
+ * slice and frame.</p>
+ *
+ * <p>
+ * Planes are read in place with {@link ImageStack#getPixels(int)}: unlike
+ * {@link ImagePlus#setSliceWithoutUpdate(int)}, the view does not move the
+ * current slice of the image, so it can be shared between threads, and
+ * nothing is copied until {@link #copyProcessor(int, int, int)} is called for
+ * a plane that is emitted as output. The pixels must not be modified.</p>
+ *
+ * <p>
+ * On a virtual stack, each access reads the plane from disk.</p>
+ */
+public class HyperstackView implements PlaneSource
+{
+  private final ImageStack stack;
+  private final int width;
+  private final int height;
+  private final int bitDepth;
+  private final int nChannels;
+  private final int nSlices;
+  private final int nFrames;
+
+  /**
+   * @param imp the hyperstack (XYCZT)
+   */
+  public HyperstackView(ImagePlus imp)
+  {
+    stack = imp.getStack();
+    width = imp.getWidth();
+    height = imp.getHeight();
+    bitDepth = imp.getBitDepth();
+    nChannels = imp.getNChannels();
+    nSlices = imp.getNSlices();
+    nFrames = imp.getNFrames();
+  }
+
+  @Override
+  public int getWidth()
+  {
+    return width;
+  }
+
+  @Override
+  public int getHeight()
+  {
+    return height;
+  }
+
+  /**
+   * @return 8, 16, 24 (RGB) or 32
+   */
+  @Override
+  public int getBitDepth()
+  {
+    return bitDepth;
+  }
+
+  @Override
+  public int getNChannels()
+  {
+    return nChannels;
+  }
+
+  @Override
+  public int getNSlices()
+  {
+    return nSlices;
+  }
+
+  @Override
+  public int getNFrames()
+  {
+    return nFrames;
+  }
+
+  /** The index of a plane in the stack, as {@link ImagePlus#getStackIndex(int, int, int)}
+   * but without the current slice of the image and without clamping.
+   * @param c the channel (1-based)
+   * @param z the slice (1-based)
+   * @param t the frame (1-based)
+   * @return the 1-based index of the plane in the stack
+   * @throws IllegalArgumentException if the plane is out of the hyperstack
+   */
+  public int getIndex(int c, int z, int t)
+  {
+    if (c<1 || c>nChannels || z<1 || z>nSlices || t<1 || t>nFrames)
+      throw new IllegalArgumentException("Plane (c="+c+", z="+z+", t="+t+") out of a "
+          +nChannels+"x"+nSlices+"x"+nFrames+" hyperstack");
+    return ((t-1)*nSlices+z-1)*nChannels+c;
+  }
+
+  /**
+   * @return the pixel array of the plane, not copied
+   * @see #getIndex(int, int, int)
+   */
+  public Object getPixels(int c, int z, int t)
+  {
+    return stack.getPixels(getIndex(c, z, t));
+  }
+
+  /**
+   * @return the pixels of a plane of an 8-bit hyperstack
+   * @see #getIndex(int, int, int)
+   */
+  public byte[] getBytePixels(int c, int z, int t)
+  {
+    return (byte[])getPixels(c, z, t);
+  }
+
+  /**
+   * @return the pixels of a plane of a 16-bit hyperstack
+   * @see #getIndex(int, int, int)
+   */
+  public short[] getShortPixels(int c, int z, int t)
+  {
+    return (short[])getPixels(c, z, t);
+  }
+
+  /**
+   * @return the pixels of a plane of a 32-bit hyperstack
+   * @see #getIndex(int, int, int)
+   */
+  public float[] getFloatPixels(int c, int z, int t)
+  {
+    return (float[])getPixels(c, z, t);
+  }
+
+  /**
+   * @return the pixels of a plane of an RGB hyperstack
+   * @see #getIndex(int, int, int)
+   */
+  public int[] getRGBPixels(int c, int z, int t)
+  {
+    return (int[])getPixels(c, z, t);
+  }
+
+  /**
+   * @return a processor sharing the pixels of the plane, without ROI
+   * @see #getIndex(int, int, int)
+   */
+  @Override
+  public ImageProcessor getProcessor(int c, int z, int t)
+  {
+    return stack.getProcessor(getIndex(c, z, t));
+  }
+
+  /**
+   * @return a processor with a copy of the pixels of the plane, to be emitted as output
+   * @see #getIndex(int, int, int)
+   */
+  public ImageProcessor copyProcessor(int c, int z, int t)
+  {
+    return getProcessor(c, z, t).duplicate();
+  }
+}
@@ -0,0 +1,367 @@
+package be.vib.autofocus;
+
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**<p>
+ * The planes of an uncompressed TIFF or raw hyperstack, memory-mapped with
+ * {@link FileChannel#map(FileChannel.MapMode, long, long)} instead of being
+ * decoded into an {@link ij.ImageStack}.</p>
+ *
+ * <p>
+ * Opening only reads the image file directories. Each plane is a typed view
+ * of the mapped file, see {@link #getPixels(int, int, int)}; its pages are
+ * read by the operating system when the plane is accessed, and stay in the
+ * page cache for the next runs. The Tenengrad and Vollath operators and the
+ * pyramid binning copy a few rows at a time, and the projections one plane at
+ * a time, into reused arrays, see
+ * {@link FocusMeasure#getDegreeofFocus(PlaneSource, int, int, int, FocusMetric, java.util.concurrent.ForkJoinPool)}
+ * and {@link ZProjector#doProjection(MappedPlaneSource, int, int)}.
+ * {@link #getProcessor(int, int, int)} copies the plane in one bulk transfer
+ * into the array of a processor, for the other operators and outputs.</p>
+ *
+ * <p>
+ * The file is mapped in chunks of whole planes of up to 2 GB, mapped on first
+ * access. The mappings are released when the source is garbage collected.</p>
+ */
+public class MappedPlaneSource implements PlaneSource
+{
+  private static final long MAX_CHUNK = Integer.MAX_VALUE;
+
+  private final File file;
+  private final int width;
+  private final int height;
+  private final int bitDepth;
+  private final int nChannels;
+  private final int nSlices;
+  private final int nFrames;
+  private final ByteOrder order;
+  private final int planeBytes;
+  /** Offset of each plane in the file, in stack order */
+  private final long[] offsets;
+  /** Chunk of each plane, and offset in the file of each chunk */
+  private final int[] chunkOfPlane;
+  private final long[] chunkOffsets;
+  private final long[] chunkSizes;
+  private final MappedByteBuffer[] chunks;
+
+  /** Map a raw file, or a TIFF file decoded by ImageJ.
+   * @param file the file
+   * @param fi the layout of the planes: type, size, byte order, offset, number of images and gap
+   * @param nChannels the number of channels
+   * @param nSlices the number of slices
+   * @param nFrames the number of frames
+   * @throws IOException if the file is compressed or the pixel type is not supported
+   */
+  public MappedPlaneSource(File file, FileInfo fi, int nChannels, int nSlices, int nFrames) throws IOException
+  {
+    this(file, new FileInfo[] {fi}, nChannels, nSlices, nFrames, false);
+  }
+
+  private MappedPlaneSource(File file, FileInfo[] info, int nChannels, int nSlices, int nFrames, boolean growing) throws IOException
+  {
+    FileInfo fi = info[0];
+    switch (fi.fileType)
+    {
+      case FileInfo.GRAY8: bitDepth = 8; break;
+      case FileInfo.GRAY16_UNSIGNED: bitDepth = 16; break;
+      case FileInfo.GRAY32_FLOAT: bitDepth = 32; break;
+      default: throw new IOException("8-bit, 16-bit unsigned or 32-bit float pixels required");
+    }
+    this.file = file;
+    width = fi.width;
+    height = fi.height;
+    this.nChannels = nChannels;
+    this.nSlices = nSlices;
+    this.nFrames = nFrames;
+    order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    planeBytes = width*height*(bitDepth/8);
+
+    //A single directory describes contiguous planes, otherwise there is one per plane
+    int nImages = nChannels*nSlices*nFrames;
+    offsets = new long[nImages];
+    if (info.length==1)
+    {
+      if (fi.nImages<nImages)
+        throw new IOException(fi.nImages+" planes in the file, "+nImages+" expected");
+      for (int i=0; i<nImages; i++)
+        offsets[i] = fi.getOffset()+i*(planeBytes+fi.getGap());
+    }
+    else
+    {
+      if (info.length<nImages)
+        throw new IOException(info.length+" planes in the file, "+nImages+" expected");
+      for (int i=0; i<nImages; i++)
+      {
+        if (info[i].width!=width || info[i].height!=height || info[i].fileType!=fi.fileType)
+          throw new IOException("The planes of the file differ in size or type");
+        offsets[i] = info[i].getOffset();
+      }
+    }
+    for (FileInfo plane : info)
+      checkUncompressed(plane);
+    long length = growing ? Long.MAX_VALUE : file.length();
+    for (long offset : offsets)
+      if (offset<0 || offset+planeBytes>length)
+        throw new IOException("Plane past the end of "+file.getName());
+
+    //Consecutive planes are grouped in chunks of up to 2 GB, of one frame each in a growing file
+    int planesPerFrame = nChannels*nSlices;
+    chunkOfPlane = new int[nImages];
+    long[] starts = new long[nImages];
+    long[] sizes = new long[nImages];
+    int nChunks = 0;
+    for (int i=0; i<nImages; i++)
+    {
+      int chunk = nChunks-1;
+      if (chunk<0 || offsets[i]<starts[chunk] || offsets[i]+planeBytes-starts[chunk]>MAX_CHUNK
+          || growing && i%planesPerFrame==0)
+      {
+        chunk = nChunks++;
+        starts[chunk] = offsets[i];
+      }
+      sizes[chunk] = Math.max(sizes[chunk], offsets[i]+planeBytes-starts[chunk]);
+      chunkOfPlane[i] = chunk;
+    }
+    chunkOffsets = new long[nChunks];
+    chunkSizes = new long[nChunks];
+    System.arraycopy(starts, 0, chunkOffsets, 0, nChunks);
+    System.arraycopy(sizes, 0, chunkSizes, 0, nChunks);
+    chunks = new MappedByteBuffer[nChunks];
+  }
+
+  /** The strips of an uncompressed plane must follow each other, as ImageJ reads them. */
+  private static void checkUncompressed(FileInfo fi) throws IOException
+  {
+    if (fi.compression>FileInfo.COMPRESSION_NONE)
+      throw new IOException("Compressed file");
+    if (fi.stripOffsets!=null && fi.stripLengths!=null)
+      for (int i=1; i<fi.stripOffsets.length; i++)
+        if ((fi.stripOffsets[i]&0xffffffffL)!=(fi.stripOffsets[i-1]&0xffffffffL)+(fi.stripLengths[i-1]&0xffffffffL))
+          throw new IOException("Non-contiguous strips");
+  }
+
+  /** Map an uncompressed TIFF file, e.g. an ImageJ hyperstack. The dimensions are read
+   * from the ImageJ description, a file without one is a stack of slices.
+   * @param file the TIFF file
+   * @return the planes of the file
+   * @throws IOException if the file cannot be read, is compressed or its pixel type is not supported
+   */
+  public static MappedPlaneSource open(File file) throws IOException
+  {
+    return open(file, false);
+  }
+
+  /** Map an uncompressed TIFF file that may still be written, e.g. during an
+   * acquisition. Its header must already describe every plane, as written by
+   * {@link TiffStreamWriter}. Only the frames that are
+   * {@link #isComplete(int) complete} can be read.
+   * @param file the TIFF file
+   * @param growing whether the planes may not be written yet
+   * @return the planes of the file
+   * @throws IOException if the file cannot be read, is compressed or its pixel type is not supported
+   * @see #open(File)
+   */
+  public static MappedPlaneSource open(File file, boolean growing) throws IOException
+  {
+    File absolute = file.getAbsoluteFile();
+    TiffDecoder decoder = new TiffDecoder(absolute.getParent()+File.separator, absolute.getName());
+    FileInfo[] info = decoder.getTiffInfo();
+    if (info==null || info.length==0)
+      throw new IOException("Not a TIFF file: "+file);
+    int nImages = info.length==1 ? info[0].nImages : info.length;
+    String description = info[0].description;
+    int nChannels = getDimension(description, "channels");
+    int nSlices = getDimension(description, "slices");
+    int nFrames = getDimension(description, "frames");
+    if (nChannels*nSlices*nFrames!=nImages)
+    {
+      nChannels = 1;
+      nSlices = nImages;
+      nFrames = 1;
+    }
+    return new MappedPlaneSource(absolute, info, nChannels, nSlices, nFrames, growing);
+  }
+
+  private static int getDimension(String description, String key)
+  {
+    if (description==null)
+      return 1;
+    Matcher matcher = Pattern.compile("(?m)^"+key+"=(\\d+)").matcher(description);
+    return matcher.find() ? Integer.parseInt(matcher.group(1)) : 1;
+  }
+
+  @Override
+  public int getWidth()
+  {
+    return width;
+  }
+
+  @Override
+  public int getHeight()
+  {
+    return height;
+  }
+
+  @Override
+  public int getBitDepth()
+  {
+    return bitDepth;
+  }
+
+  @Override
+  public int getNChannels()
+  {
+    return nChannels;
+  }
+
+  @Override
+  public int getNSlices()
+  {
+    return nSlices;
+  }
+
+  @Override
+  public int getNFrames()
+  {
+    return nFrames;
+  }
+
+  /**
+   * @param t the frame (1-based)
+   * @return true if every plane of the frame is in the file
+   */
+  public boolean isComplete(int t)
+  {
+    long length = file.length();
+    for (int i=(t-1)*nChannels*nSlices; i<t*nChannels*nSlices; i++)
+      if (offsets[i]+planeBytes>length)
+        return false;
+    return true;
+  }
+
+  /** The bytes of a plane, in the byte order of the file, without copying them.
+   * @param c the channel (1-based)
+   * @param z the slice (1-based)
+   * @param t the frame (1-based)
+   * @return a view of the plane, from position 0 to its size
+   * @throws IOException if the file cannot be mapped
+   */
+  public ByteBuffer getBuffer(int c, int z, int t) throws IOException
+  {
+    if (c<1 || c>nChannels || z<1 || z>nSlices || t<1 || t>nFrames)
+      throw new IllegalArgumentException("Plane (c="+c+", z="+z+", t="+t+") out of a "
+          +nChannels+"x"+nSlices+"x"+nFrames+" hyperstack");
+    int index = ((t-1)*nSlices+z-1)*nChannels+c-1;
+    int chunk = chunkOfPlane[index];
+    ByteBuffer buffer = getChunk(chunk).duplicate();
+    int position = (int)(offsets[index]-chunkOffsets[chunk]);
+    buffer.position(position);
+    buffer.limit(position+planeBytes);
+    return buffer.slice().order(order);
+  }
+
+  /**
+   * @return the pixels of a plane of a 16-bit file, without copying them
+   * @see #getBuffer(int, int, int)
+   */
+  public ShortBuffer getShortBuffer(int c, int z, int t) throws IOException
+  {
+    return getBuffer(c, z, t).asShortBuffer();
+  }
+
+  /**
+   * @return the pixels of a plane of a 32-bit file, without copying them
+   * @see #getBuffer(int, int, int)
+   */
+  public FloatBuffer getFloatBuffer(int c, int z, int t) throws IOException
+  {
+    return getBuffer(c, z, t).asFloatBuffer();
+  }
+
+  private synchronized MappedByteBuffer getChunk(int chunk) throws IOException
+  {
+    if (chunks[chunk]==null)
+    {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try
+      {
+        //The mapping stays valid once the channel is closed
+        chunks[chunk] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, chunkOffsets[chunk], chunkSizes[chunk]);
+      }
+      finally
+      {
+        raf.close();
+      }
+    }
+    return chunks[chunk];
+  }
+
+  /** The pixels of a plane as a typed view of the mapped file, without copying them.
+   * @param c the channel (1-based)
+   * @param z the slice (1-based)
+   * @param t the frame (1-based)
+   * @return a {@link ByteBuffer}, {@link ShortBuffer} or {@link FloatBuffer} of
+   * the pixels of an 8, 16 or 32-bit file, from position 0 to the number of pixels
+   * @throws IllegalStateException if the file cannot be mapped
+   * @see #getBuffer(int, int, int)
+   */
+  public Buffer getPixels(int c, int z, int t)
+  {
+    try
+    {
+      if (bitDepth==8)
+        return getBuffer(c, z, t);
+      if (bitDepth==16)
+        return getShortBuffer(c, z, t);
+      return getFloatBuffer(c, z, t);
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(file.getName()+": "+e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return a processor with a copy of the pixels of the plane
+   * @throws IllegalStateException if the file cannot be mapped
+   * @see #getPixels(int, int, int)
+   */
+  @Override
+  public ImageProcessor getProcessor(int c, int z, int t)
+  {
+    Buffer buffer = getPixels(c, z, t);
+    if (bitDepth==8)
+    {
+      byte[] pixels = new byte[width*height];
+      ((ByteBuffer)buffer).get(pixels);
+      return new ByteProcessor(width, height, pixels, null);
+    }
+    if (bitDepth==16)
+    {
+      short[] pixels = new short[width*height];
+      ((ShortBuffer)buffer).get(pixels);
+      return new ShortProcessor(width, height, pixels, null);
+    }
+    float[] pixels = new float[width*height];
+    ((FloatBuffer)buffer).get(pixels);
+    return new FloatProcessor(width, height, pixels, null);
+  }
+}
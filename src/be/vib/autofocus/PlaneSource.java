@@ -0,0 +1,36 @@
+package be.vib.autofocus;
+
+import ij.process.ImageProcessor;
+
+/**<p>
+ * The planes of a hyperstack, addressed by channel, slice and frame, read on
+ * demand. An in-memory hyperstack is read through a {@link HyperstackView};
+ * the planes of a virtual stack are read from disk on each access.</p>
+ *
+ * @see StreamingAutoFocus
+ */
+public interface PlaneSource
+{
+  public int getWidth();
+
+  public int getHeight();
+
+  /**
+   * @return 8, 16, 24 (RGB) or 32
+   */
+  public int getBitDepth();
+
+  public int getNChannels();
+
+  public int getNSlices();
+
+  public int getNFrames();
+
+  /**
+   * @param c the channel (1-based)
+   * @param z the slice (1-based)
+   * @param t the frame (1-based)
+   * @return the plane, which must not be modified
+   */
+  public ImageProcessor getProcessor(int c, int z, int t);
+}
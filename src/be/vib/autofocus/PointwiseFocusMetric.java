@@ -0,0 +1,139 @@
+package be.vib.autofocus;
+
+import java.awt.Rectangle;
+
+/**<p>
+ * Base class of the focus operators that summarize a per-pixel focus
+ * response (a gradient magnitude, a Laplacian, ...) by its mean, variance
+ * or standard deviation over the ROI.</p>
+ */
+abstract class PointwiseFocusMetric extends WindowFocusMetric
+{
+  static final int MEAN = 0;
+  static final int VARIANCE = 1;
+  static final int STD_DEV = 2;
+
+  /** Index of the first scratch value in the accumulators, after the sum and the sum of squares */
+  static final int SCRATCH = 2;
+
+  private final int radius;
+  private final int statistic;
+
+  /**
+   * @param name the name of the operator
+   * @param radius the number of rows needed above and below the current row
+   * @param statistic how the response is summarized: {@link #MEAN},
+   * {@link #VARIANCE} or {@link #STD_DEV}
+   */
+  PointwiseFocusMetric(String name, int radius, int statistic)
+  {
+    super(name);
+    this.radius = radius;
+    this.statistic = statistic;
+  }
+
+  @Override
+  int getRadius()
+  {
+    return radius;
+  }
+
+  /**
+   * @return how the response is summarized: {@link #MEAN}, {@link #VARIANCE} or {@link #STD_DEV}
+   */
+  int getStatistic()
+  {
+    return statistic;
+  }
+
+  /** Compute the focus response of every pixel of the ROI.
+   * @param pixels a <code>byte[]</code>, <code>short[]</code> or <code>float[]</code> pixel array
+   * @param width the width of the plane
+   * @param roi the region of the plane
+   * @param response receives the <code>roi.width*roi.height</code> responses, row by row
+   */
+  void response(Object pixels, int width, Rectangle roi, float[] response)
+  {
+    Workspace workspace = Workspace.get();
+    WindowFocusMetric[] metrics = {new ResponseMap(this, response)};
+    double[][] acc = workspace.getAccumulators(metrics, roi.width);
+    scan(pixels, width, roi, metrics, acc, workspace);
+  }
+
+  /** Compute the focus response of one row of the ROI.
+   * @param acc the accumulators; values from {@link #SCRATCH} on may be used
+   * as scratch space kept from one row to the next
+   * @param response receives the response of the <code>width</code> pixels of the row
+   * @see WindowFocusMetric#accumulateRow(float[][], int, int, int, int, double[], float[])
+   */
+  abstract void responseRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] response);
+
+  @Override
+  void accumulateRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] buffer)
+  {
+    responseRow(window, center, row, width, height, acc, buffer);
+    double sum = 0;
+    double sum2 = 0;
+    for (int x=0; x<width; x++)
+    {
+      double v = buffer[x];
+      sum += v;
+      sum2 += v*v;
+    }
+    acc[0] += sum;
+    acc[1] += sum2;
+  }
+
+  @Override
+  double getResult(double[] acc, int width, int height)
+  {
+    double n = (double)width*height;
+    switch (statistic) {
+    case VARIANCE:
+      return FocusMeasure.variance(acc[0], acc[1], n);
+    case STD_DEV:
+      return Math.sqrt(FocusMeasure.variance(acc[0], acc[1], n));
+    default:
+      return acc[0]/n;
+    }
+  }
+
+  /** Copies the response of each row of the scan into a map. */
+  private static class ResponseMap extends WindowFocusMetric
+  {
+    private final PointwiseFocusMetric metric;
+    private final float[] map;
+
+    ResponseMap(PointwiseFocusMetric metric, float[] map)
+    {
+      super(metric.getName());
+      this.metric = metric;
+      this.map = map;
+    }
+
+    @Override
+    int getRadius()
+    {
+      return metric.getRadius();
+    }
+
+    @Override
+    int getAccumulatorSize(int width)
+    {
+      return metric.getAccumulatorSize(width);
+    }
+
+    @Override
+    void accumulateRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] buffer)
+    {
+      metric.responseRow(window, center, row, width, height, acc, buffer);
+      System.arraycopy(buffer, 0, map, row*width, width);
+    }
+
+    @Override
+    double getResult(double[] acc, int width, int height)
+    {
+      return 0;
+    }
+  }
+}
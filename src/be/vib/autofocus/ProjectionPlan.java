@@ -0,0 +1,80 @@
+package be.vib.autofocus;
+
+import ij.ImagePlus;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**<p>
+ * The Z projections and best focus planes needed by several outputs of one
+ * run. Every requested (channel, method) pair is added first, then each
+ * unique pair is computed once by {@link #execute(int[])}, and the outputs
+ * are assembled from copies of the shared results.</p>
+ *
+ * @see Auto_Focus#generateMIPBrightFieldStack(ImagePlus, java.util.ArrayList, int, int, int, int, int, boolean, BestFocusStackResult, ProjectionPlan)
+ */
+public class ProjectionPlan
+{
+  /** Method extracting the best focus plane of the brightfield instead of a Z projection */
+  public static final int BEST_PLANE = -1;
+
+  private final Auto_Focus autoFocus;
+  private final ImagePlus imp;
+  private final Map<List<Integer>, ImagePlus> results = new LinkedHashMap<List<Integer>, ImagePlus>();
+
+  /**
+   * @param autoFocus computes the projections and best focus planes
+   * @param imp the original hyperstack (XYZT)
+   */
+  public ProjectionPlan(Auto_Focus autoFocus, ImagePlus imp)
+  {
+    this.autoFocus = autoFocus;
+    this.imp = imp;
+  }
+
+  /** Request a projection, computed on the next {@link #execute(int[])}.
+   * @param channel the channel number
+   * @param method a {@link ZProjector} method or {@link #BEST_PLANE}
+   */
+  public void add(int channel, int method)
+  {
+    List<Integer> key = Arrays.asList(channel, method);
+    if (!results.containsKey(key))
+      results.put(key, null);
+  }
+
+  /** Compute every requested projection not computed yet.
+   * @param bestFocusPositionArray the best focus position (0-based) of each
+   * timepoint, needed by {@link #BEST_PLANE} only
+   */
+  public void execute(int[] bestFocusPositionArray)
+  {
+    for (Map.Entry<List<Integer>, ImagePlus> entry : results.entrySet())
+      if (entry.getValue()==null)
+      {
+        int channel = entry.getKey().get(0);
+        int method = entry.getKey().get(1);
+        System.out.println("MIP on channel :"+channel);
+        if (method==BEST_PLANE)
+          entry.setValue(autoFocus.getZFromIndex(imp, channel, bestFocusPositionArray));
+        else
+          entry.setValue(autoFocus.getZProjection(imp, channel, method));
+      }
+  }
+
+  /** Get a copy of a projection, computing it first if it was not requested.
+   * The copy can be merged, closed or modified without affecting the other outputs.
+   * @param channel the channel number
+   * @param method a {@link ZProjector} method or {@link #BEST_PLANE}
+   * @param bestFocusPositionArray the best focus position (0-based) of each timepoint
+   * @return a copy of the projection
+   */
+  public ImagePlus get(int channel, int method, int[] bestFocusPositionArray)
+  {
+    add(channel, method);
+    execute(bestFocusPositionArray);
+    return results.get(Arrays.asList(channel, method)).duplicate();
+  }
+}
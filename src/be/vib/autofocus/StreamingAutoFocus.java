@@ -0,0 +1,273 @@
+package be.vib.autofocus;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**<p>
+ * Out-of-core version of {@link Auto_Focus#computeAutoFocusStack(ImagePlus, int, FocusMetric)}
+ * and of the Z projections, for hyperstacks larger than the memory, e.g.
+ * virtual stacks opened with <code>IJ.openVirtual</code>.</p>
+ *
+ * <p>
+ * The timepoints are processed one after the other: only the Z-stacks of the
+ * current timepoint and of the needed channels are read, each plane once, and
+ * the outputs of the timepoint are appended to a TIFF file before the next one
+ * is read. The memory used does not depend on the number of frames.</p>
+ *
+ * <p>
+ * The output is an XYCT hyperstack: the best focus plane of the brightfield,
+ * followed by one plane per fluorescent channel.</p>
+ */
+public class StreamingAutoFocus
+{
+  private final Auto_Focus autoFocus;
+  private final int brightfieldChannel;
+  private final List<Integer> fluorescentChannelList;
+  private final FocusMetric metric;
+  private final int projectionMethod;
+  /** Best plane (0-based) and focus curve of the previous timepoint, for tracking */
+  private int previous = -1;
+  private double[] previousCurve;
+  private double subPlanePosition = Double.NaN;
+
+  /**
+   * @param autoFocus the settings of the Z search, tracking and peak fit
+   * @param brightfieldChannel the brightfield channel number
+   * @param fluorescentChannelList the fluorescent channel numbers
+   * @param metric the focus operator
+   * @param projectionMethod a {@link ZProjector} method, or {@link ProjectionPlan#BEST_PLANE}
+   * to take the best focus plane of the brightfield in the fluorescent channels too
+   */
+  public StreamingAutoFocus(Auto_Focus autoFocus, int brightfieldChannel, List<Integer> fluorescentChannelList,
+      FocusMetric metric, int projectionMethod)
+  {
+    this.autoFocus = autoFocus;
+    this.brightfieldChannel = brightfieldChannel;
+    this.fluorescentChannelList = fluorescentChannelList;
+    this.metric = metric;
+    this.projectionMethod = projectionMethod;
+  }
+
+  /**
+   * @param imp the hyperstack (XYCZT), usually a virtual stack
+   * @see #process(PlaneSource, File)
+   */
+  public double[] process(ImagePlus imp, File output) throws IOException
+  {
+    return process(new HyperstackView(imp), output);
+  }
+
+  /** Find the best focus plane of the brightfield and project the fluorescent
+   * channels, one timepoint at a time, and write them to a TIFF file.
+   * @param source the planes of the hyperstack
+   * @param output the TIFF file, overwritten
+   * @return the sub-plane best focus position (0-based) of each timepoint
+   * @throws IOException if the output cannot be written
+   */
+  public double[] process(PlaneSource source, File output) throws IOException
+  {
+    int tNumber = source.getNFrames();
+    PlaneSource planes = cache(source);
+    double[] subPlanePositionArray = new double[tNumber];
+    TiffStreamWriter writer = null;
+    try
+    {
+      for (int t=1; t<=tNumber; t++)
+      {
+        IJ.showProgress(t, tNumber);
+        ImageProcessor[] outputs = processTimepoint(planes, t);
+        subPlanePositionArray[t-1] = subPlanePosition;
+        //Averages are floating point: the type of the file is known after the first timepoint
+        if (writer==null)
+          writer = new TiffStreamWriter(output, source.getWidth(), source.getHeight(), maxBitDepth(outputs), outputs.length, 1, tNumber);
+        for (ImageProcessor ip : outputs)
+          writer.append(convert(ip, writer.getBitDepth()));
+        if (planes instanceof TimepointCache)
+          ((TimepointCache)planes).clear();
+      }
+    }
+    finally
+    {
+      if (writer!=null)
+        writer.close();
+    }
+    return subPlanePositionArray;
+  }
+
+  /** Process the next timepoint: the timepoints must be passed in order, as
+   * the tracking starts from the best plane of the previous one. The planes
+   * of the timepoint are read through a cache, so each one is read once,
+   * except those of a {@link MappedPlaneSource}, which are read from the mapping.
+   * @param source the planes of the hyperstack
+   * @param t the timepoint (1-based) in the source
+   * @return the best focus plane of the brightfield, followed by one plane per fluorescent channel
+   */
+  public ImageProcessor[] processTimepoint(PlaneSource source, int t)
+  {
+    if (source.getBitDepth()==24)
+      throw new IllegalArgumentException("Non-RGB stack required");
+    PlaneSource planes = cache(source);
+    int zNumber = source.getNSlices();
+    double[] curve = new double[zNumber];
+    Arrays.fill(curve, Double.NaN);
+    //A timepoint with another number of planes starts a new search
+    if (previousCurve==null || previousCurve.length!=zNumber)
+      previous = -1;
+    BestFocusResult result = autoFocus.findBestZFocus(planes, brightfieldChannel, t, metric, curve,
+        previous, previous<0 ? Double.NaN : previousCurve[previous]);
+    int best = result.getPosition();
+    subPlanePosition = ZSearch.interpolatePeak(curve, best, autoFocus.getPeakFit());
+
+    ImageProcessor[] outputs = new ImageProcessor[fluorescentChannelList.size()+1];
+    outputs[0] = result.getIp();
+    for (int i=0; i<fluorescentChannelList.size(); i++)
+    {
+      int channel = fluorescentChannelList.get(i);
+      if (projectionMethod==ProjectionPlan.BEST_PLANE)
+        outputs[i+1] = planes.getProcessor(channel, best+1, t);
+      else
+        outputs[i+1] = project(planes, channel, t, projectionMethod);
+    }
+    previous = best;
+    previousCurve = curve;
+    return outputs;
+  }
+
+  /**
+   * @return the sub-plane best focus position (0-based) of the last timepoint processed
+   */
+  public double getSubPlanePosition()
+  {
+    return subPlanePosition;
+  }
+
+  /** Convert a plane to the type of the output. */
+  static ImageProcessor convert(ImageProcessor ip, int bitDepth)
+  {
+    if (ip.getBitDepth()==bitDepth)
+      return ip;
+    if (bitDepth==32)
+      return ip.convertToFloat();
+    if (bitDepth==16)
+      return ip.convertToShort(false);
+    return ip.convertToByte(false);
+  }
+
+  static int maxBitDepth(ImageProcessor[] planes)
+  {
+    int bitDepth = 0;
+    for (ImageProcessor ip : planes)
+      bitDepth = Math.max(bitDepth, ip.getBitDepth());
+    return bitDepth;
+  }
+
+  /** The planes of a source through a {@link TimepointCache}, unless they are
+   * memory-mapped views that the focus operators and projections read from the mapping. */
+  private static PlaneSource cache(PlaneSource source)
+  {
+    if (source instanceof TimepointCache || source instanceof MappedPlaneSource)
+      return source;
+    return new TimepointCache(source);
+  }
+
+  /** Project the Z-stack of one channel and timepoint. */
+  private ImageProcessor project(PlaneSource planes, int channel, int t, int method)
+  {
+    if (planes instanceof MappedPlaneSource)
+    {
+      ZProjector projector = new ZProjector();
+      projector.setMethod(method);
+      projector.setForkJoinPool(autoFocus.getForkJoinPool());
+      return projector.doProjection((MappedPlaneSource)planes, channel, t);
+    }
+    ImageStack stack = new ImageStack(planes.getWidth(), planes.getHeight());
+    for (int z=1; z<=planes.getNSlices(); z++)
+      stack.addSlice(planes.getProcessor(channel, z, t));
+    ZProjector projector = new ZProjector(new ImagePlus("Channel "+channel, stack));
+    projector.setStartSlice(1);
+    projector.setStopSlice(stack.getSize());
+    projector.setMethod(method);
+    //Deep Z-stacks are projected in chunks of slices on the pool
+    projector.setForkJoinPool(autoFocus.getForkJoinPool());
+    projector.doProjection();
+    return projector.getProjection().getProcessor();
+  }
+
+  /** Keeps the planes of the current timepoint, so each one is read once. */
+  private static class TimepointCache implements PlaneSource
+  {
+    private final PlaneSource source;
+    private final ImageProcessor[][] planes;
+    private int frame = -1;
+
+    TimepointCache(PlaneSource source)
+    {
+      this.source = source;
+      planes = new ImageProcessor[source.getNChannels()][source.getNSlices()];
+    }
+
+    @Override
+    public int getWidth()
+    {
+      return source.getWidth();
+    }
+
+    @Override
+    public int getHeight()
+    {
+      return source.getHeight();
+    }
+
+    @Override
+    public int getBitDepth()
+    {
+      return source.getBitDepth();
+    }
+
+    @Override
+    public int getNChannels()
+    {
+      return source.getNChannels();
+    }
+
+    @Override
+    public int getNSlices()
+    {
+      return source.getNSlices();
+    }
+
+    @Override
+    public int getNFrames()
+    {
+      return source.getNFrames();
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int c, int z, int t)
+    {
+      if (t!=frame)
+      {
+        clear();
+        frame = t;
+      }
+      if (planes[c-1][z-1]==null)
+        planes[c-1][z-1] = source.getProcessor(c, z, t);
+      return planes[c-1][z-1];
+    }
+
+    /** Release the planes of the current timepoint. */
+    void clear()
+    {
+      for (ImageProcessor[] channel : planes)
+        Arrays.fill(channel, null);
+      frame = -1;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package be.vib.autofocus;
+
+import ij.IJ;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**<p>
+ * Writes an uncompressed ImageJ hyperstack TIFF plane by plane, so the
+ * planes do not have to be in memory together.</p>
+ *
+ * <p>
+ * The planes are appended in ImageJ order (channel, slice, frame), and their
+ * number is fixed when the file is created: as with ImageJ's own TIFF
+ * encoder, the image file directories and the description are written first,
+ * and the pixels follow contiguously. Files over 4 GB have one directory only,
+ * and are read by ImageJ from the <code>images=</code> entry of the description.</p>
+ */
+public class TiffStreamWriter implements Closeable
+{
+  private static final int HEADER_SIZE = 8;
+  private static final long MAX_OFFSET = 0xffffffffL;
+
+  private final OutputStream out;
+  private final int width;
+  private final int height;
+  private final int bitDepth;
+  private final int nImages;
+  private final ByteBuffer buffer;
+  private int written = 0;
+
+  /**
+   * @param file the file, overwritten
+   * @param width the width of the planes
+   * @param height the height of the planes
+   * @param bitDepth 8, 16 or 32
+   * @param nChannels the number of channels
+   * @param nSlices the number of slices
+   * @param nFrames the number of frames
+   * @throws IOException if the file cannot be written
+   */
+  public TiffStreamWriter(File file, int width, int height, int bitDepth, int nChannels, int nSlices, int nFrames) throws IOException
+  {
+    if (bitDepth!=8 && bitDepth!=16 && bitDepth!=32)
+      throw new IllegalArgumentException("8, 16 or 32-bit planes required, not "+bitDepth);
+    this.width = width;
+    this.height = height;
+    this.bitDepth = bitDepth;
+    this.nImages = nChannels*nSlices*nFrames;
+    buffer = ByteBuffer.allocate(width*height*(bitDepth/8));
+    out = new BufferedOutputStream(new FileOutputStream(file), 1<<16);
+
+    StringBuilder description = new StringBuilder("ImageJ="+IJ.getVersion()+"\n");
+    description.append("images=").append(nImages).append('\n');
+    if (nChannels>1)
+      description.append("channels=").append(nChannels).append('\n');
+    if (nSlices>1)
+      description.append("slices=").append(nSlices).append('\n');
+    if (nFrames>1)
+      description.append("frames=").append(nFrames).append('\n');
+    if ((nChannels>1?1:0)+(nSlices>1?1:0)+(nFrames>1?1:0)>1)
+      description.append("hyperstack=true\n");
+    description.append((char)0);
+    byte[] descriptionBytes = description.toString().getBytes("ISO-8859-1");
+
+    long imageSize = (long)buffer.capacity();
+    int nDirectories = imageSize*nImages>MAX_OFFSET ? 1 : nImages;
+    int nEntries = bitDepth==32 ? 10 : 9;
+    int directorySize = 2+12*nEntries+4;
+    int firstDirectorySize = directorySize+12;
+    long descriptionOffset = HEADER_SIZE+firstDirectorySize+(long)(nDirectories-1)*directorySize;
+    long imageOffset = descriptionOffset+descriptionBytes.length;
+
+    ByteBuffer header = ByteBuffer.allocate((int)imageOffset);
+    header.put((byte)'M').put((byte)'M').putShort((short)42).putInt(HEADER_SIZE);
+    for (int i=0; i<nDirectories; i++)
+    {
+      boolean first = i==0;
+      int next = i==nDirectories-1 ? 0 : header.position()+(first?firstDirectorySize:directorySize);
+      header.putShort((short)(first ? nEntries+1 : nEntries));
+      putEntry(header, 254, 4, 1, 0); //NewSubfileType
+      putEntry(header, 256, 4, 1, width); //ImageWidth
+      putEntry(header, 257, 4, 1, height); //ImageLength
+      putShortEntry(header, 258, bitDepth); //BitsPerSample
+      putShortEntry(header, 262, 1); //PhotometricInterpretation: BlackIsZero
+      if (first)
+        putEntry(header, 270, 2, descriptionBytes.length, (int)descriptionOffset); //ImageDescription
+      putEntry(header, 273, 4, 1, (int)(imageOffset+i*imageSize)); //StripOffsets
+      putShortEntry(header, 277, 1); //SamplesPerPixel
+      putEntry(header, 278, 4, 1, height); //RowsPerStrip
+      putEntry(header, 279, 4, 1, (int)imageSize); //StripByteCounts
+      if (bitDepth==32)
+        putShortEntry(header, 339, 3); //SampleFormat: IEEE floating point
+      header.putInt(next);
+    }
+    header.put(descriptionBytes);
+    out.write(header.array());
+  }
+
+  private static void putEntry(ByteBuffer header, int tag, int type, int count, int value)
+  {
+    header.putShort((short)tag).putShort((short)type).putInt(count).putInt(value);
+  }
+
+  /** An entry with a single SHORT value, left-justified in the value field. */
+  private static void putShortEntry(ByteBuffer header, int tag, int value)
+  {
+    header.putShort((short)tag).putShort((short)3).putInt(1).putShort((short)value).putShort((short)0);
+  }
+
+  /** Append the next plane.
+   * @param ip the plane, of the size and bit depth of the file
+   * @throws IOException if the plane cannot be written
+   */
+  public void append(ImageProcessor ip) throws IOException
+  {
+    if (written==nImages)
+      throw new IllegalStateException("The "+nImages+" planes are already written");
+    if (ip.getWidth()!=width || ip.getHeight()!=height || ip.getBitDepth()!=bitDepth)
+      throw new IllegalArgumentException("A "+width+"x"+height+" "+bitDepth+"-bit plane is required");
+    buffer.clear();
+    Object pixels = ip.getPixels();
+    if (bitDepth==8)
+      buffer.put((byte[])pixels);
+    else if (bitDepth==16)
+      buffer.asShortBuffer().put((short[])pixels);
+    else
+      buffer.asFloatBuffer().put((float[])pixels);
+    out.write(buffer.array());
+    written++;
+  }
+
+  /**
+   * @return 8, 16 or 32
+   */
+  public int getBitDepth()
+  {
+    return bitDepth;
+  }
+
+  /**
+   * @return the number of planes appended
+   */
+  public int getWritten()
+  {
+    return written;
+  }
+
+  /** Close the file.
+   * @throws IOException if the file cannot be written, or not every plane was appended
+   */
+  @Override
+  public void close() throws IOException
+  {
+    out.close();
+    if (written<nImages)
+      throw new IOException("Only "+written+" of the "+nImages+" planes were written");
+  }
+}
@@ -0,0 +1,266 @@
+package be.vib.autofocus;
+
+import java.awt.Rectangle;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**<p>
+ * Base class of the focus operators that only need a few neighbouring rows
+ * around the current one.</p>
+ *
+ * <p>
+ * The plane is scanned once, row by row, inside the ROI. Each row is converted
+ * to <code>float</code> a single time, whatever the pixel type, into a small
+ * window of rows kept by the calling thread, so the operators are written
+ * once for the three pixel types and no image is allocated. Rows above and
+ * below the ROI are replicated from its first and last rows.</p>
+ */
+abstract class WindowFocusMetric implements FocusMetric
+{
+  private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+    @Override
+    protected Workspace initialValue()
+    {
+      return new Workspace();
+    }
+  };
+
+  private final String name;
+
+  WindowFocusMetric(String name)
+  {
+    this.name = name;
+  }
+
+  @Override
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * @return the number of rows needed above and below the current row
+   */
+  abstract int getRadius();
+
+  /**
+   * @param width the width of the ROI
+   * @return the number of accumulators (and scratch values) the operator needs
+   */
+  int getAccumulatorSize(int width)
+  {
+    return 2;
+  }
+
+  /** Accumulate the contribution of one row of the ROI.
+   * @param window the rows of the window: <code>window[center]</code> is the
+   * current row, <code>window[center+dy]</code> the row <code>dy</code> below it.
+   * Only the <code>width</code> first values of a row are meaningful.
+   * @param center the index of the current row in the window
+   * @param row the index of the current row in the ROI
+   * @param width the width of the ROI
+   * @param height the height of the ROI
+   * @param acc the accumulators of the operator, all set to 0 before the first row
+   * @param buffer a scratch row of at least <code>width</code> values
+   */
+  abstract void accumulateRow(float[][] window, int center, int row, int width, int height, double[] acc, float[] buffer);
+
+  /** Compute the Degree of Focus once all the rows have been accumulated.
+   * @param acc the accumulators of the operator
+   * @param width the width of the ROI
+   * @param height the height of the ROI
+   * @return the relative degree of focus
+   */
+  abstract double getResult(double[] acc, int width, int height);
+
+  @Override
+  public double measure(byte[] pixels, int width, Rectangle roi)
+  {
+    return measureObject(pixels, width, roi);
+  }
+
+  @Override
+  public double measure(short[] pixels, int width, Rectangle roi)
+  {
+    return measureObject(pixels, width, roi);
+  }
+
+  @Override
+  public double measure(float[] pixels, int width, Rectangle roi)
+  {
+    return measureObject(pixels, width, roi);
+  }
+
+  private double measureObject(Object pixels, int width, Rectangle roi)
+  {
+    if (roi.width<1 || roi.height<1)
+      return 0;
+    Workspace workspace = WORKSPACE.get();
+    WindowFocusMetric[] metrics = workspace.single;
+    metrics[0] = this;
+    double[][] acc = workspace.getAccumulators(metrics, roi.width);
+    scan(pixels, width, roi, metrics, acc, workspace);
+    return getResult(acc[0], roi.width, roi.height);
+  }
+
+  /** Scan the ROI of a plane once and feed every row to each operator.
+   * @param pixels a <code>byte[]</code>, <code>short[]</code> or <code>float[]</code> pixel array
+   * @param width the width of the plane
+   * @param roi the region of the plane to scan
+   * @param metrics the operators to feed
+   * @param acc the accumulators of each operator
+   * @param workspace the workspace of the calling thread
+   */
+  static void scan(Object pixels, int width, Rectangle roi, WindowFocusMetric[] metrics, double[][] acc, Workspace workspace)
+  {
+    int w = roi.width;
+    int h = roi.height;
+    int radius = 0;
+    for (int i=0; i<metrics.length; i++)
+      radius = Math.max(radius, metrics[i].getRadius());
+    int size = 2*radius+1;
+    float[][] slots = workspace.getRows(size, w);
+    float[][] window = workspace.getWindow(size);
+    float[] buffer = workspace.getBuffer(w);
+    int loaded = -1;
+    for (int y=0; y<h; y++)
+    {
+      int needed = Math.min(y+radius, h-1);
+      while (loaded<needed)
+      {
+        loaded++;
+        loadRow(pixels, (roi.y+loaded)*width+roi.x, w, slots[loaded%size]);
+      }
+      for (int k=0; k<size; k++)
+      {
+        int r = y-radius+k;
+        if (r<0)
+          r = 0;
+        else if (r>h-1)
+          r = h-1;
+        window[k] = slots[r%size];
+      }
+      for (int i=0; i<metrics.length; i++)
+        metrics[i].accumulateRow(window, radius, y, w, h, acc[i], buffer);
+    }
+  }
+
+  /** Convert one row of pixels to <code>float</code>. */
+  static void loadRow(Object pixels, int offset, int w, float[] row)
+  {
+    if (pixels instanceof byte[])
+    {
+      byte[] pixels8 = (byte[])pixels;
+      for (int x=0; x<w; x++)
+        row[x] = pixels8[offset+x]&0xff;
+    }
+    else if (pixels instanceof short[])
+    {
+      short[] pixels16 = (short[])pixels;
+      for (int x=0; x<w; x++)
+        row[x] = pixels16[offset+x]&0xffff;
+    }
+    else
+      System.arraycopy((float[])pixels, offset, row, 0, w);
+  }
+
+  /** Rows, scratch buffers and accumulators reused by the scans of one thread. */
+  static class Workspace
+  {
+    final WindowFocusMetric[] single = new WindowFocusMetric[1];
+    private float[][] rows = new float[0][];
+    private float[][] window = new float[0][];
+    private float[] buffer = new float[0];
+    private byte[] byteRows = new byte[0];
+    private short[] shortRows = new short[0];
+    private float[] floatRows = new float[0];
+    private double[][] acc = new double[0][];
+
+    float[][] getRows(int size, int width)
+    {
+      if (rows.length<size)
+        rows = Arrays.copyOf(rows, size);
+      for (int i=0; i<size; i++)
+        if (rows[i]==null || rows[i].length<width)
+          rows[i] = new float[width];
+      return rows;
+    }
+
+    float[][] getWindow(int size)
+    {
+      if (window.length!=size)
+        window = new float[size][];
+      return window;
+    }
+
+    float[] getBuffer(int width)
+    {
+      if (buffer.length<width)
+        buffer = new float[width];
+      return buffer;
+    }
+
+    /** Copy rows of a mapped plane with one bulk get into a row buffer of the
+     * pixel type, reused from call to call.
+     * @param pixels a {@link ByteBuffer}, {@link ShortBuffer} or {@link FloatBuffer} of the plane
+     * @param offset the index of the first pixel to copy
+     * @param size the number of pixels to copy
+     * @return the <code>byte[]</code>, <code>short[]</code> or <code>float[]</code> row buffer
+     */
+    Object copyRows(Buffer pixels, int offset, int size)
+    {
+      //The buffer is shared by the stripes and the threads: its position is only moved on a duplicate
+      if (pixels instanceof ByteBuffer)
+      {
+        if (byteRows.length<size)
+          byteRows = new byte[size];
+        ByteBuffer rows = ((ByteBuffer)pixels).duplicate();
+        rows.position(offset);
+        rows.get(byteRows, 0, size);
+        return byteRows;
+      }
+      else if (pixels instanceof ShortBuffer)
+      {
+        if (shortRows.length<size)
+          shortRows = new short[size];
+        ShortBuffer rows = ((ShortBuffer)pixels).duplicate();
+        rows.position(offset);
+        rows.get(shortRows, 0, size);
+        return shortRows;
+      }
+      else
+      {
+        if (floatRows.length<size)
+          floatRows = new float[size];
+        FloatBuffer rows = ((FloatBuffer)pixels).duplicate();
+        rows.position(offset);
+        rows.get(floatRows, 0, size);
+        return floatRows;
+      }
+    }
+
+    /** @return one zeroed accumulator array per operator */
+    double[][] getAccumulators(WindowFocusMetric[] metrics, int width)
+    {
+      if (acc.length<metrics.length)
+        acc = Arrays.copyOf(acc, metrics.length);
+      for (int i=0; i<metrics.length; i++)
+      {
+        int size = metrics[i].getAccumulatorSize(width);
+        if (acc[i]==null || acc[i].length<size)
+          acc[i] = new double[size];
+        else
+          Arrays.fill(acc[i], 0);
+      }
+      return acc;
+    }
+
+    static Workspace get()
+    {
+      return WORKSPACE.get();
+    }
+  }
+}
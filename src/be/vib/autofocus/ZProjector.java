@@ -10,7 +10,15 @@ import ij.measure.Measurements;
 import java.lang.*; 
 import java.awt.*; 
 import java.awt.event.*; 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** This plugin performs a z-projection of the input stack. Type of
     output image is same as type of input image.
@@ -54,6 +62,9 @@ public class ZProjector {//implements PlugIn {
     private boolean isHyperstack;
     private int increment = 1;
     private int sliceCount;
+    private ForkJoinPool pool = null;
+    /** Stacks are projected in chunks of slices on the pool from twice this depth */
+    private static final int MIN_CHUNK_SLICES = 16;
 
     public ZProjector() {
     }
@@ -87,6 +98,12 @@ public class ZProjector {//implements PlugIn {
   public void setMethod(int projMethod){
     method = projMethod;
   }
+
+  /** Project the channels and frames of a hyperstack in parallel on a pool.
+  @param pool the pool, <code>null</code> to project on the calling thread */
+  public void setForkJoinPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
     
     /** Retrieve results of most recent projection operation.*/
     public ImagePlus getProjection() {
@@ -239,10 +256,7 @@ public class ZProjector {//implements PlugIn {
 //      return;
 //    } 
     
-    // Create new float processor for projected pixels.
-    FloatProcessor fp = new FloatProcessor(imp.getWidth(),imp.getHeight()); 
     ImageStack stack = imp.getStack();
-    RayFunction rayFunc = getRayFunction(method, fp);
 //    if (IJ.debugMode==true) {
 //        IJ.log("\nProjecting stack from: "+startSlice
 //          +" to: "+stopSlice); 
@@ -262,7 +276,34 @@ public class ZProjector {//implements PlugIn {
         return; 
     }
 
+    // Max and min of 8 and 16-bit stacks are accumulated in the output pixels.
+    if (isNativeExtremum(ptype)) {
+      ImageProcessor oip = imp.getProcessor().createProcessor(imp.getWidth(), imp.getHeight());
+      Object pixels = oip.getPixels();
+      for(int n=startSlice; n<=stopSlice; n+=increment) {
+        if (!isHyperstack) {
+          IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
+          IJ.showProgress(n-startSlice, stopSlice-startSlice);
+        }
+        if (n==startSlice)
+          System.arraycopy(stack.getPixels(n), 0, pixels, 0, oip.getPixelCount());
+        else
+          projectExtremum(pixels, stack.getPixels(n));
+      }
+      oip.resetMinAndMax();
+      projImage = new ImagePlus(makeTitle(), oip);
+      return;
+    }
+
+    // Create new float processor for projected pixels.
+    FloatProcessor fp = new FloatProcessor(imp.getWidth(),imp.getHeight()); 
+    RayFunction rayFunc = getRayFunction(method, fp);
+
     // Do the projection.
+    int nChunks = pool==null ? 1 : Math.min(pool.getParallelism(), sliceCount/MIN_CHUNK_SLICES);
+    if (nChunks>1)
+      projectInChunks(getSlices(stack), stack.getWidth(), stack.getHeight(), rayFunc, ptype, nChunks);
+    else
     for(int n=startSlice; n<=stopSlice; n+=increment) {
       if (!isHyperstack) {
           IJ.showStatus("ZProjection " + color +": " + n + "/" + stopSlice);
@@ -288,6 +329,323 @@ public class ZProjector {//implements PlugIn {
         IJ.error("Z Project", "Error computing projection.");
     }
 
+  /** Projects the slices of one channel and frame of a memory-mapped hyperstack,
+  reading the mapped planes one at a time instead of copying them all into a
+  stack: each plane is copied with one bulk get into an array reused for the
+  next one, except by the median that keeps the planes. Deep Z-stacks are
+  projected in chunks of slices on the pool, as by doProjection(). The start and stop
+  slices are ignored: every slice is projected.
+  @param source the planes of the hyperstack
+  @param channel the channel (1-based)
+  @param frame the frame (1-based)
+  @return the projection, of the type of the planes */
+  public ImageProcessor doProjection(final MappedPlaneSource source, final int channel, final int frame) {
+    int ptype;
+    switch (source.getBitDepth()) {
+      case 8: ptype = BYTE_TYPE; break;
+      case 16: ptype = SHORT_TYPE; break;
+      default: ptype = FLOAT_TYPE; break;
+    }
+    int width = source.getWidth();
+    int height = source.getHeight();
+    sliceCount = source.getNSlices();
+    Slices slices = new Slices() {
+      public Object get(int n) {
+        return source.getPixels(channel, n, frame);
+      }
+    };
+    ImageProcessor oip = ptype==BYTE_TYPE ? new ByteProcessor(width, height)
+      : ptype==SHORT_TYPE ? new ShortProcessor(width, height) : new FloatProcessor(width, height);
+
+    if (isNativeExtremum(ptype)) {
+      Object pixels = oip.getPixels();
+      Object plane = null;
+      for (int n=1; n<=sliceCount; n++) {
+        if (n==1)
+          copyPlane((Buffer)slices.get(n), pixels);
+        else {
+          plane = copyPlane((Buffer)slices.get(n), plane);
+          projectExtremum(pixels, plane);
+        }
+      }
+      oip.resetMinAndMax();
+      return oip;
+    }
+
+    FloatProcessor fp = new FloatProcessor(width, height);
+    RayFunction rayFunc = getRayFunction(method, fp);
+    startSlice = 1;
+    stopSlice = sliceCount;
+    increment = 1;
+    int nChunks = pool==null ? 1 : Math.min(pool.getParallelism(), sliceCount/MIN_CHUNK_SLICES);
+    if (nChunks>1)
+      projectInChunks(slices, width, height, rayFunc, ptype, nChunks);
+    else
+      for (int n=1; n<=sliceCount; n++)
+        projectSlice(slices.get(n), rayFunc, ptype);
+    rayFunc.postProcess();
+    if (ptype==FLOAT_TYPE)
+      oip = fp;
+    else
+      copyOutput((float[])fp.getPixels(), oip.getPixels(), ptype);
+    oip.resetMinAndMax();
+    return oip;
+  }
+
+  /** The slices of a projection, read from a stack or from a mapped hyperstack. */
+  private interface Slices {
+    /** @return the pixels of slice <code>n</code> (1-based), an array or a buffer */
+    public Object get(int n);
+  }
+
+  private static Slices getSlices(final ImageStack stack) {
+    return new Slices() {
+      public Object get(int n) {
+        return stack.getPixels(n);
+      }
+    };
+  }
+
+  /** Projects the slices of a deep stack in consecutive chunks on the pool, each
+  with its own ray function, and merges them in order into <code>rayFunc</code>,
+  so the result does not depend on the scheduling. */
+  private void projectInChunks(final Slices slices, int width, int height, RayFunction rayFunc, final int ptype, int nChunks) {
+    final RayFunction[] chunks = new RayFunction[nChunks];
+    final RecursiveAction[] tasks = new RecursiveAction[nChunks];
+    for (int i=0; i<nChunks; i++) {
+      final RayFunction chunk = i==0 ? rayFunc : getRayFunction(method, new FloatProcessor(width, height));
+      final int from = startSlice+(int)((long)i*sliceCount/nChunks)*increment;
+      final int to = startSlice+(int)((long)(i+1)*sliceCount/nChunks)*increment;
+      chunks[i] = chunk;
+      tasks[i] = new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+          for (int n=from; n<to; n+=increment)
+            projectSlice(slices.get(n), chunk, ptype);
+        }
+      };
+    }
+    if (ForkJoinTask.inForkJoinPool())
+      ForkJoinTask.invokeAll(tasks);
+    else
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    for (int i=1; i<nChunks; i++)
+      rayFunc.combine(chunks[i]);
+  }
+
+  /** Projects the slices <code>start</code> to <code>stop</code> of the selected
+  channels of every frame in one sweep, reading the planes in place from the view.
+  The output planes are allocated first and split in one run per worker of the
+  pool: each run reuses its own accumulator for its planes and writes the
+  results directly into the output stack. */
+  private ImageStack projectHyperStack(HyperstackView view, int[] channelArray,
+      int firstFrame, int lastFrame, int start, int stop) {
+    int ptype;
+    switch (view.getBitDepth()) {
+      case 8: ptype = BYTE_TYPE; break;
+      case 16: ptype = SHORT_TYPE; break;
+      case 32: ptype = FLOAT_TYPE; break;
+      default:
+        IJ.error("Z Project", "Non-RGB stack required");
+        return null;
+    }
+    int width = view.getWidth();
+    int height = view.getHeight();
+    int size = width*height;
+    ImageStack stack = new ImageStack(width, height,
+      ptype==FLOAT_TYPE ? null : imp.getProcessor().getColorModel());
+    int nPlanes = 0;
+    for (int channel=1; channel<=view.getNChannels(); channel++)
+      if (isPart(channelArray, channel))
+        nPlanes++;
+    nPlanes *= lastFrame-firstFrame+1;
+    int[] channels = new int[nPlanes];
+    int[] frames = new int[nPlanes];
+    Object[] outputs = new Object[nPlanes];
+    int index = 0;
+    for (int frame=firstFrame; frame<=lastFrame; frame++)
+      for (int channel=1; channel<=view.getNChannels(); channel++)
+        if (isPart(channelArray, channel)) {
+          channels[index] = channel;
+          frames[index] = frame;
+          switch (ptype) {
+            case BYTE_TYPE: outputs[index] = new byte[size]; break;
+            case SHORT_TYPE: outputs[index] = new short[size]; break;
+            default: outputs[index] = new float[size]; break;
+          }
+          stack.addSlice(null, outputs[index]);
+          index++;
+        }
+    sliceCount = stop-start+1;
+
+    int nRuns = pool==null ? 1 : Math.max(1, Math.min(pool.getParallelism(), nPlanes));
+    final ProjectionRun[] runs = new ProjectionRun[nRuns];
+    AtomicInteger done = new AtomicInteger();
+    for (int i=0; i<nRuns; i++)
+      runs[i] = new ProjectionRun(view, channels, frames, outputs, (int)((long)i*nPlanes/nRuns),
+        (int)((long)(i+1)*nPlanes/nRuns), start, stop, ptype, done);
+    if (nRuns==1)
+      runs[0].project();
+    else if (ForkJoinTask.inForkJoinPool())
+      ForkJoinTask.invokeAll(runs);
+    else
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+          invokeAll(runs);
+        }
+      });
+    return stack;
+  }
+
+  /** Projects the output planes <code>[from, to)</code> with one accumulator. */
+  private class ProjectionRun extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final HyperstackView view;
+    private final int[] channels;
+    private final int[] frames;
+    private final Object[] outputs;
+    private final int from, to, start, stop, ptype;
+    private final AtomicInteger done;
+
+    ProjectionRun(HyperstackView view, int[] channels, int[] frames, Object[] outputs,
+        int from, int to, int start, int stop, int ptype, AtomicInteger done) {
+      this.view = view;
+      this.channels = channels;
+      this.frames = frames;
+      this.outputs = outputs;
+      this.from = from;
+      this.to = to;
+      this.start = start;
+      this.stop = stop;
+      this.ptype = ptype;
+      this.done = done;
+    }
+
+    @Override
+    protected void compute() {
+      project();
+    }
+
+    void project() {
+      if (isNativeExtremum(ptype)) {
+        for (int i=from; i<to; i++) {
+          for (int z=start; z<=stop; z++) {
+            Object pixels = view.getPixels(channels[i], z, frames[i]);
+            if (z==start)
+              System.arraycopy(pixels, 0, outputs[i], 0, view.getWidth()*view.getHeight());
+            else
+              projectExtremum(outputs[i], pixels);
+          }
+          IJ.showProgress(done.incrementAndGet(), outputs.length);
+        }
+        return;
+      }
+      FloatProcessor fp = new FloatProcessor(view.getWidth(), view.getHeight());
+      float[] fpixels = (float[])fp.getPixels();
+      RayFunction rayFunc = getRayFunction(method, fp);
+      for (int i=from; i<to; i++) {
+        if (i>from)
+          rayFunc.reset();
+        for (int z=start; z<=stop; z++)
+          projectSlice(view.getPixels(channels[i], z, frames[i]), rayFunc, ptype);
+        rayFunc.postProcess();
+        copyOutput(fpixels, outputs[i], ptype);
+        IJ.showProgress(done.incrementAndGet(), outputs.length);
+      }
+    }
+  }
+
+  /** Whether the projection is a max or min of 8 or 16-bit planes, done in
+  the pixel type of the planes without a float accumulator. */
+  private boolean isNativeExtremum(int ptype) {
+    return (method==MAX_METHOD || method==MIN_METHOD) && ptype!=FLOAT_TYPE;
+  }
+
+  /** Keeps in <code>result</code> the max or min of its pixels and of the plane,
+  comparing the 8 or 16-bit values as unsigned. */
+  private void projectExtremum(Object result, Object pixels) {
+    if (result instanceof byte[]) {
+      byte[] result8 = (byte[])result;
+      byte[] pixels8 = (byte[])pixels;
+      if (method==MAX_METHOD) {
+        for (int i=0; i<result8.length; i++)
+          if ((pixels8[i]&0xff)>(result8[i]&0xff))
+            result8[i] = pixels8[i];
+      } else {
+        for (int i=0; i<result8.length; i++)
+          if ((pixels8[i]&0xff)<(result8[i]&0xff))
+            result8[i] = pixels8[i];
+      }
+    } else {
+      short[] result16 = (short[])result;
+      short[] pixels16 = (short[])pixels;
+      if (method==MAX_METHOD) {
+        for (int i=0; i<result16.length; i++)
+          if ((pixels16[i]&0xffff)>(result16[i]&0xffff))
+            result16[i] = pixels16[i];
+      } else {
+        for (int i=0; i<result16.length; i++)
+          if ((pixels16[i]&0xffff)<(result16[i]&0xffff))
+            result16[i] = pixels16[i];
+      }
+    }
+  }
+
+  /** Copies a plane of a mapped file with one bulk get, into <code>copy</code>
+  unless it is null. */
+  private static Object copyPlane(Buffer pixels, Object copy) {
+    if (pixels instanceof ByteBuffer) {
+      ByteBuffer pixels8 = ((ByteBuffer)pixels).duplicate();
+      if (copy==null)
+        copy = new byte[pixels8.remaining()];
+      pixels8.get((byte[])copy);
+    } else if (pixels instanceof ShortBuffer) {
+      ShortBuffer pixels16 = ((ShortBuffer)pixels).duplicate();
+      if (copy==null)
+        copy = new short[pixels16.remaining()];
+      pixels16.get((short[])copy);
+    } else {
+      FloatBuffer pixels32 = ((FloatBuffer)pixels).duplicate();
+      if (copy==null)
+        copy = new float[pixels32.remaining()];
+      pixels32.get((float[])copy);
+    }
+    return copy;
+  }
+
+  /** Writes the projected pixels into an output plane of the type of the input image. */
+  private static void copyOutput(float[] fpixels, Object pixels, int ptype) {
+    int size = fpixels.length;
+    switch (ptype) {
+      case BYTE_TYPE:
+        byte[] pixels8 = (byte[])pixels;
+        for (int i=0; i<size; i++)
+          pixels8[i] = (byte)fpixels[i];
+        break;
+      case SHORT_TYPE:
+        short[] pixels16 = (short[])pixels;
+        for (int i=0; i<size; i++)
+          pixels16[i] = (short)fpixels[i];
+        break;
+      case FLOAT_TYPE:
+        System.arraycopy(fpixels, 0, pixels, 0, size);
+        break;
+    }
+  }
+
   //Added by Marcel Boeglin 2013.09.23
   /** Performs actual projection using specified method. If handleOverlay,
   adds stack overlay elements from startSlice to stopSlice to projection*/
@@ -332,6 +690,11 @@ public class ZProjector {//implements PlugIn {
     int frames = lastFrame-firstFrame+1;
     increment = channels;
     boolean rgb = imp.getBitDepth()==24;
+    // Z-stacks are read in place through a view, time series as a plain stack
+    HyperstackView view = imp.getNSlices()>1 ? new HyperstackView(imp) : null;
+    if (view!=null && !rgb)
+      stack = projectHyperStack(view, channelArray, firstFrame, lastFrame, start, stop);
+    else
     for (int frame=firstFrame; frame<=lastFrame; frame++) {
       IJ.showStatus(""+ (frame-firstFrame) + "/" + (lastFrame-firstFrame));
       IJ.showProgress(frame-firstFrame, lastFrame-firstFrame);
@@ -451,13 +814,15 @@ public class ZProjector {//implements PlugIn {
   private RayFunction getRayFunction(int method, FloatProcessor fp) {
     switch (method) {
       case AVG_METHOD: case SUM_METHOD:
-          return new AverageIntensity(fp, sliceCount); 
+          return new AverageIntensity(fp); 
       case MAX_METHOD:
           return new MaxIntensity(fp);
         case MIN_METHOD:
           return new MinIntensity(fp); 
       case SD_METHOD:
-          return new StandardDeviation(fp, sliceCount); 
+          return new StandardDeviation(fp); 
+      case MEDIAN_METHOD:
+          return new MedianIntensity(fp, sliceCount);
       default:
           IJ.error("Z Project", "Unknown method.");
           return null;
@@ -508,6 +873,10 @@ public class ZProjector {//implements PlugIn {
   ImageProcessor getPixelValue() and putPixel() methods because
   direct manipulation of pixel arrays is much more efficient.  */
   private void projectSlice(Object pixelArray, RayFunction rayFunc, int ptype) {
+    if (pixelArray instanceof Buffer) {
+      rayFunc.projectSlice((Buffer)pixelArray);
+      return;
+    }
     switch(ptype) {
       case BYTE_TYPE:
           rayFunc.projectSlice((byte[])pixelArray); 
@@ -520,7 +889,7 @@ public class ZProjector {//implements PlugIn {
           break; 
     }
     }
-    
+
     String makeTitle() {
       String prefix = "AVG_";
     switch (method) {
@@ -533,42 +902,6 @@ public class ZProjector {//implements PlugIn {
       return WindowManager.makeUniqueName(prefix+imp.getTitle());
     }
 
-  ImagePlus doMedianProjection() {
-    IJ.showStatus("Calculating median...");
-    ImageStack stack = imp.getStack();
-    ImageProcessor[] slices = new ImageProcessor[sliceCount];
-    int index = 0;
-    for (int slice=startSlice; slice<=stopSlice; slice+=increment)
-      slices[index++] = stack.getProcessor(slice);
-    ImageProcessor ip2 = slices[0].duplicate();
-    ip2 = ip2.convertToFloat();
-    float[] values = new float[sliceCount];
-    int width = ip2.getWidth();
-    int height = ip2.getHeight();
-    int inc = Math.max(height/30, 1);
-    for (int y=0; y<height; y++) {
-      if (y%inc==0) IJ.showProgress(y, height-1);
-      for (int x=0; x<width; x++) {
-        for (int i=0; i<sliceCount; i++)
-        values[i] = slices[i].getPixelValue(x, y);
-        ip2.putPixelValue(x, y, median(values));
-      }
-    }
-    if (imp.getBitDepth()==8)
-      ip2 = ip2.convertToByte(false);
-    IJ.showProgress(1, 1);
-    return new ImagePlus(makeTitle(), ip2);
-  }
-
-  float median(float[] a) {
-    Arrays.sort(a);
-    int middle = a.length/2;
-    if ((a.length&1)==0) //even
-      return (a[middle-1] + a[middle])/2f;
-    else
-      return a[middle];
-  }
-
      /** Abstract class that specifies structure of ray
   function. Preprocessing should be done in derived class
   constructors.
@@ -578,11 +911,44 @@ public class ZProjector {//implements PlugIn {
     public abstract void projectSlice(byte[] pixels);
     public abstract void projectSlice(short[] pixels);
     public abstract void projectSlice(float[] pixels);
+
+    /** Copy of the last plane of a mapped file, reused for the next one. */
+    private Object plane;
+
+    /** Project a plane of a mapped file, copied with one bulk get into an
+        array reused from plane to plane, unless keepsPlanes(). */
+    public void projectSlice(Buffer pixels) {
+      plane = copyPlane(pixels, plane);
+      if (plane instanceof byte[])
+        projectSlice((byte[])plane);
+      else if (plane instanceof short[])
+        projectSlice((short[])plane);
+      else
+        projectSlice((float[])plane);
+      if (keepsPlanes())
+        plane = null;
+    }
+
+    /** Whether the projected planes are kept until postProcess(), so the
+        copies of the mapped planes cannot be reused. */
+    boolean keepsPlanes() {
+      return false;
+    }
     
     /** Perform any necessary post processing operations, e.g.
         averging values. */
     public void postProcess() {}
 
+    /** Clear the accumulated values, to project another ray set. */
+    public abstract void reset();
+
+    /** Merge the values accumulated by another ray function of the same
+        method and size, over other slices, before postProcess(). The merge
+        is associative, so a range of slices can be split in chunks
+        projected separately, e.g. on several threads or as they are read,
+        and merged at the end. */
+    public abstract void combine(RayFunction other);
+
     } // end RayFunction
 
 
@@ -591,28 +957,41 @@ public class ZProjector {//implements PlugIn {
       private float[] fpixels;
     private int num, len; 
 
-    /** Constructor requires number of slices to be
-        projected. This is used to determine average at each
-        pixel. */
-    public AverageIntensity(FloatProcessor fp, int num) {
+    /** The average at each pixel is taken over the number of
+        slices projected, counted as they are added. */
+    public AverageIntensity(FloatProcessor fp) {
       fpixels = (float[])fp.getPixels();
       len = fpixels.length;
-        this.num = num;
+    }
+
+    public void reset() {
+      Arrays.fill(fpixels, 0f);
+      num = 0;
+    }
+
+    public void combine(RayFunction other) {
+      AverageIntensity average = (AverageIntensity)other;
+        for(int i=0; i<len; i++)
+        fpixels[i] += average.fpixels[i];
+      num += average.num;
     }
 
     public void projectSlice(byte[] pixels) {
         for(int i=0; i<len; i++)
         fpixels[i] += (pixels[i]&0xff); 
+      num++;
     }
 
     public void projectSlice(short[] pixels) {
         for(int i=0; i<len; i++)
         fpixels[i] += pixels[i]&0xffff;
+      num++;
     }
 
     public void projectSlice(float[] pixels) {
         for(int i=0; i<len; i++)
         fpixels[i] += pixels[i]; 
+      num++;
     }
 
     public void postProcess() {
@@ -633,8 +1012,19 @@ public class ZProjector {//implements PlugIn {
     public MaxIntensity(FloatProcessor fp) {
       fpixels = (float[])fp.getPixels();
       len = fpixels.length;
-      for (int i=0; i<len; i++)
-        fpixels[i] = -Float.MAX_VALUE;
+      reset();
+    }
+
+    public void reset() {
+      Arrays.fill(fpixels, -Float.MAX_VALUE);
+    }
+
+    public void combine(RayFunction other) {
+      float[] max = ((MaxIntensity)other).fpixels;
+        for(int i=0; i<len; i++) {
+        if(max[i]>fpixels[i])
+            fpixels[i] = max[i];
+        }
     }
 
     public void projectSlice(byte[] pixels) {
@@ -669,8 +1059,19 @@ public class ZProjector {//implements PlugIn {
     public MinIntensity(FloatProcessor fp) {
       fpixels = (float[])fp.getPixels();
       len = fpixels.length;
-      for (int i=0; i<len; i++)
-        fpixels[i] = Float.MAX_VALUE;
+      reset();
+    }
+
+    public void reset() {
+      Arrays.fill(fpixels, Float.MAX_VALUE);
+    }
+
+    public void combine(RayFunction other) {
+      float[] min = ((MinIntensity)other).fpixels;
+        for(int i=0; i<len; i++) {
+        if(min[i]<fpixels[i])
+            fpixels[i] = min[i];
+        }
     }
 
     public void projectSlice(byte[] pixels) {
@@ -697,63 +1098,313 @@ public class ZProjector {//implements PlugIn {
     } // end MaxIntensity
 
 
-    /** Compute standard deviation projection. */
+    /** Compute standard deviation projection. The mean and the sum of
+    the squared deviations from it are updated for each slice (Welford),
+    which does not lose precision as the sum of the squares does, and
+    the accumulators of two ranges of slices are merged exactly (Chan). */
     class StandardDeviation extends RayFunction {
       private float[] result;
-      private double[] sum, sum2;
+      private double[] mean, m2;
     private int num,len; 
 
-    public StandardDeviation(FloatProcessor fp, int num) {
+    public StandardDeviation(FloatProcessor fp) {
       result = (float[])fp.getPixels();
       len = result.length;
-        this.num = num;
-      sum = new double[len];
-      sum2 = new double[len];
+      mean = new double[len];
+      m2 = new double[len];
+    }
+
+    public void reset() {
+      Arrays.fill(mean, 0.0);
+      Arrays.fill(m2, 0.0);
+      num = 0;
+    }
+
+    public void combine(RayFunction other) {
+      StandardDeviation sd = (StandardDeviation)other;
+      if (sd.num==0)
+        return;
+      double n = num+sd.num;
+      double weight = sd.num/n;
+      double weight2 = (double)num*sd.num/n;
+        for(int i=0; i<len; i++) {
+          double delta = sd.mean[i]-mean[i];
+        mean[i] += delta*weight;
+        m2[i] += sd.m2[i]+delta*delta*weight2;
+      }
+      num += sd.num;
     }
   
     public void projectSlice(byte[] pixels) {
-      int v;
+      double v, delta, inverse = 1.0/++num;
         for(int i=0; i<len; i++) {
           v = pixels[i]&0xff;
-        sum[i] += v;
-        sum2[i] += v*v;
+          delta = v-mean[i];
+        mean[i] += delta*inverse;
+        m2[i] += delta*(v-mean[i]);
       } 
     }
   
     public void projectSlice(short[] pixels) {
-      double v;
+      double v, delta, inverse = 1.0/++num;
         for(int i=0; i<len; i++) {
           v = pixels[i]&0xffff;
-        sum[i] += v;
-        sum2[i] += v*v;
+          delta = v-mean[i];
+        mean[i] += delta*inverse;
+        m2[i] += delta*(v-mean[i]);
       } 
     }
   
     public void projectSlice(float[] pixels) {
-      double v;
+      double v, delta, inverse = 1.0/++num;
         for(int i=0; i<len; i++) {
           v = pixels[i];
-        sum[i] += v;
-        sum2[i] += v*v;
+          delta = v-mean[i];
+        mean[i] += delta*inverse;
+        m2[i] += delta*(v-mean[i]);
       } 
     }
   
     public void postProcess() {
-      double stdDev;
-      double n = num;
         for(int i=0; i<len; i++) {
-        if (num>1) {
-          stdDev = (n*sum2[i]-sum[i]*sum[i])/n;
-          if (stdDev>0.0)
-            result[i] = (float)Math.sqrt(stdDev/(n-1.0));
-          else
-            result[i] = 0f;
-        } else
+        if (num>1 && m2[i]>0.0)
+          result[i] = (float)Math.sqrt(m2[i]/(num-1.0));
+        else
           result[i] = 0f;
       }
     }
 
     } // end StandardDeviation
+
+
+    /** Compute median projection. The planes are kept, not copied, and the
+    medians are selected on postProcess(), in parallel over bands of rows
+    on the pool. A band gathers the values of a row of every plane in a
+    buffer, one pixel after the other, and selects the median of each
+    pixel with histograms for 8 and 16-bit values and a quickselect for
+    float values. With an even number of planes, the median is the mean
+    of the two middle values. */
+    class MedianIntensity extends RayFunction {
+      private static final int MIN_BAND_ROWS = 16;
+      private float[] result;
+      private Object[] planes;
+      private int num, count, width, height;
+
+    public MedianIntensity(FloatProcessor fp, int num) {
+      result = (float[])fp.getPixels();
+      width = fp.getWidth();
+      height = fp.getHeight();
+        this.num = num;
+      planes = new Object[Math.max(num, 1)];
+    }
+
+    public void projectSlice(byte[] pixels) {
+      addPlane(pixels);
+    }
+
+    public void projectSlice(short[] pixels) {
+      addPlane(pixels);
+    }
+
+    public void projectSlice(float[] pixels) {
+      addPlane(pixels);
+    }
+
+    boolean keepsPlanes() {
+      return true;
+    }
+
+    private void addPlane(Object pixels) {
+      if (count==planes.length)
+        planes = Arrays.copyOf(planes, Math.max(2*count, 1));
+      planes[count++] = pixels;
+    }
+
+    public void reset() {
+      Arrays.fill(planes, null);
+      count = 0;
+    }
+
+    public void combine(RayFunction other) {
+      MedianIntensity median = (MedianIntensity)other;
+      if (count+median.count>planes.length)
+        planes = Arrays.copyOf(planes, count+median.count);
+      System.arraycopy(median.planes, 0, planes, count, median.count);
+      count += median.count;
+    }
+
+    public void postProcess() {
+      int n = pool==null ? 1 : Math.max(1, Math.min(pool.getParallelism(), height/MIN_BAND_ROWS));
+      final RecursiveAction[] bands = new RecursiveAction[n];
+      for (int i=0; i<n; i++) {
+        final int from = (int)((long)i*height/n);
+        final int to = (int)((long)(i+1)*height/n);
+        bands[i] = new RecursiveAction() {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected void compute() {
+            medianRows(from, to);
+          }
+        };
+      }
+      if (n==1)
+        medianRows(0, height);
+      else if (ForkJoinTask.inForkJoinPool())
+        ForkJoinTask.invokeAll(bands);
+      else
+        pool.invoke(new RecursiveAction() {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected void compute() {
+            invokeAll(bands);
+          }
+        });
+      reset();
+    }
+
+    /** Select the medians of the rows <code>[from, to)</code>. */
+    private void medianRows(int from, int to) {
+      if (count==0)
+        return;
+      int k1 = (count-1)/2;
+      int k2 = count/2;
+      if (planes[0] instanceof float[]) {
+        float[] values = new float[width*count];
+        for (int y=from; y<to; y++) {
+          int offset = y*width;
+          for (int z=0; z<count; z++) {
+            float[] pixels = (float[])planes[z];
+            for (int x=0, v=z; x<width; x++, v+=count)
+              values[v] = pixels[offset+x];
+          }
+          for (int x=0, v=0; x<width; x++, v+=count) {
+            float m1 = select(values, v, v+count, v+k1);
+            if (k2==k1)
+              result[offset+x] = m1;
+            else {
+              //The values after the first middle one are not smaller
+              float m2 = values[v+k2];
+              for (int i=v+k2+1; i<v+count; i++)
+                if (values[i]<m2)
+                  m2 = values[i];
+              result[offset+x] = (m1+m2)/2f;
+            }
+          }
+        }
+        return;
+      }
+      boolean bytes = planes[0] instanceof byte[];
+      int[] values = new int[width*count];
+      int[] high = new int[256];
+      int[] low = new int[256];
+      for (int y=from; y<to; y++) {
+        int offset = y*width;
+        for (int z=0; z<count; z++) {
+          if (bytes) {
+            byte[] pixels = (byte[])planes[z];
+            for (int x=0, v=z; x<width; x++, v+=count)
+              values[v] = pixels[offset+x]&0xff;
+          } else {
+            short[] pixels = (short[])planes[z];
+            for (int x=0, v=z; x<width; x++, v+=count)
+              values[v] = pixels[offset+x]&0xffff;
+          }
+        }
+        for (int x=0, v=0; x<width; x++, v+=count) {
+          int m1, m2;
+          if (bytes) {
+            for (int i=v; i<v+count; i++)
+              high[values[i]]++;
+            m1 = rank(high, k1);
+            m2 = k2==k1 ? m1 : rank(high, k2);
+            for (int i=v; i<v+count; i++)
+              high[values[i]]--;
+          } else {
+            m1 = select(values, v, v+count, k1, high, low);
+            m2 = k2==k1 ? m1 : select(values, v, v+count, k2, high, low);
+          }
+          result[offset+x] = (m1+m2)/2f;
+        }
+      }
+    }
+
+    } // end MedianIntensity
+
+  /** @return the bin of the <code>k</code>-th smallest (0-based) value counted in the histogram */
+  private static int rank(int[] histogram, int k) {
+    int sum = 0;
+    for (int bin=0; ; bin++) {
+      sum += histogram[bin];
+      if (sum>k)
+        return bin;
+    }
+  }
+
+  /** Selects the <code>k</code>-th smallest of the 16-bit values <code>[from, to)</code>
+  with a histogram of their high bytes, then one of the low bytes of the values
+  in the selected high byte. The histograms are left cleared. */
+  private static int select(int[] values, int from, int to, int k, int[] high, int[] low) {
+    for (int i=from; i<to; i++)
+      high[values[i]>>8]++;
+    int bin = rank(high, k);
+    for (int b=0; b<bin; b++)
+      k -= high[b];
+    for (int i=from; i<to; i++) {
+      high[values[i]>>8] = 0;
+      if (values[i]>>8==bin)
+        low[values[i]&0xff]++;
+    }
+    int value = bin<<8 | rank(low, k);
+    for (int i=from; i<to; i++)
+      low[values[i]&0xff] = 0;
+    return value;
+  }
+
+  /** Selects in place the value of rank <code>k</code> of <code>[from, to)</code>:
+  once done, the values before <code>k</code> are not larger and the values after
+  it are not smaller. Each pass splits the range in three, the values smaller
+  than the pivot, equal to it and larger, and stops as soon as <code>k</code>
+  falls among the equal ones, so repeated values, e.g. a saturated or
+  background pixel in every plane, are selected in linear time. */
+  private static float select(float[] values, int from, int to, int k) {
+    int left = from;
+    int right = to-1;
+    while (right>left) {
+      //Median of three pivot
+      int middle = (left+right)>>>1;
+      if (values[middle]<values[left]) swap(values, middle, left);
+      if (values[right]<values[left]) swap(values, right, left);
+      if (values[middle]<values[right]) swap(values, middle, right);
+      float pivot = values[right];
+      //[left, lower) < pivot, [lower, i) == pivot, (upper, right] > pivot
+      int lower = left;
+      int upper = right;
+      int i = left;
+      while (i<=upper) {
+        if (values[i]<pivot)
+          swap(values, i++, lower++);
+        else if (values[i]>pivot)
+          swap(values, i, upper--);
+        else
+          i++;
+      }
+      if (k<lower)
+        right = lower-1;
+      else if (k>upper)
+        left = upper+1;
+      else
+        break;
+    }
+    return values[k];
+  }
+
+  private static void swap(float[] values, int i, int j) {
+    float value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+  }
     
     
     private boolean isPart(int[] arr, int value) {
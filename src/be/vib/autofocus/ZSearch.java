@@ -0,0 +1,237 @@
+package be.vib.autofocus;
+
+/**<p>
+ * Strategies to find the best focus plane of a Z-stack by scoring as few
+ * planes as possible.</p>
+ *
+ * <b>Methods:</b>
+ * <ul>
+ * <li>{@link #EXHAUSTIVE}: every plane is scored.</li>
+ * <li>{@link #GOLDEN_SECTION} and {@link #FIBONACCI}: the planes are first
+ * sampled with a coarse stride, the best sample brackets the peak, and the
+ * bracket is shrunk by golden-section or Fibonacci search. Assuming a
+ * unimodal focus curve, about <code>8+log(Z)</code> planes are scored.</li>
+ * </ul>
+ * <p>
+ * In safe mode, a full scan is done when the coarse samples show more than
+ * one peak.</p>
+ */
+public class ZSearch
+{
+  public static final int EXHAUSTIVE = 0;
+  public static final int GOLDEN_SECTION = 1;
+  public static final int FIBONACCI = 2;
+  public static final String[] METHODS = {"Exhaustive", "Golden Section", "Fibonacci"};
+
+  public static final int PARABOLA = 0;
+  public static final int GAUSSIAN = 1;
+  public static final String[] PEAK_FITS = {"Parabola", "Gaussian"};
+
+  /** Number of coarse samples when the stride is chosen automatically */
+  public static final int COARSE_SAMPLES = 8;
+  /** Fraction of the range of the coarse samples under which a dip does not separate two peaks */
+  public static final double PEAK_TOLERANCE = 0.05;
+
+  private static final double PHI = (1+Math.sqrt(5))/2;
+
+  /** Computes the focus score of a plane on demand. */
+  public interface Scorer
+  {
+    /**
+     * @param z the 0-based plane index
+     * @return the relative degree of focus of the plane
+     */
+    public double score(int z);
+  }
+
+  /** Find the best focus plane between <code>from</code> and <code>to</code>.
+   * @param scorer computes the score of a plane
+   * @param curve the focus curve: a score, or <code>NaN</code> for the planes not
+   * scored yet. Planes already scored are not scored again, and every plane
+   * scored by the search is stored in it.
+   * @param from the first plane of the range (0-based, inclusive)
+   * @param to the last plane of the range (inclusive)
+   * @param method {@link #EXHAUSTIVE}, {@link #GOLDEN_SECTION} or {@link #FIBONACCI}
+   * @param stride the stride of the coarse samples, 0 or less to take about
+   * {@link #COARSE_SAMPLES} samples
+   * @param safe do a full scan if the coarse samples show more than one peak
+   * @return the index of the plane with the highest score
+   */
+  public static int search(Scorer scorer, double[] curve, int from, int to, int method, int stride, boolean safe)
+  {
+    int n = to-from+1;
+    if (stride<=0)
+      stride = Math.max(2, (n+COARSE_SAMPLES-1)/COARSE_SAMPLES);
+    if (method==EXHAUSTIVE || n<=2*stride+1)
+      return scan(scorer, curve, from, to);
+
+    //Coarse samples bracket the peak
+    int best = from;
+    for (int z=from; z<=to; z+=stride)
+      if (score(scorer, curve, z)>curve[best])
+        best = z;
+    if ((to-from)%stride!=0 && score(scorer, curve, to)>curve[best])
+      best = to;
+    if (safe && isMultimodal(curve, from, to, stride))
+      return scan(scorer, curve, from, to);
+    int lo = Math.max(from, best-stride);
+    int hi = Math.min(to, best+stride);
+
+    if (method==FIBONACCI)
+      return fibonacci(scorer, curve, lo, hi);
+    return goldenSection(scorer, curve, lo, hi);
+  }
+
+  /** Score every plane of the range and return the best one, the first one on ties. */
+  static int scan(Scorer scorer, double[] curve, int from, int to)
+  {
+    int best = from;
+    for (int z=from; z<=to; z++)
+      if (score(scorer, curve, z)>curve[best])
+        best = z;
+    return best;
+  }
+
+  private static double score(Scorer scorer, double[] curve, int z)
+  {
+    if (Double.isNaN(curve[z]))
+      curve[z] = scorer.score(z);
+    return curve[z];
+  }
+
+  /** Golden-section search of the maximum of a unimodal curve over the integers of [lo, hi]. */
+  static int goldenSection(Scorer scorer, double[] curve, int lo, int hi)
+  {
+    while (hi-lo>3)
+    {
+      int step = (int)Math.round((hi-lo)/PHI);
+      int c = hi-step;
+      int d = lo+step;
+      if (c>=d)
+        break;
+      if (score(scorer, curve, c)>=score(scorer, curve, d))
+        hi = d;
+      else
+        lo = c;
+    }
+    return scan(scorer, curve, lo, hi);
+  }
+
+  /** Fibonacci search of the maximum of a unimodal curve over the integers of [lo, hi]:
+   * one new plane is scored per step. */
+  static int fibonacci(Scorer scorer, double[] curve, int lo, int hi)
+  {
+    //Smallest Fibonacci number F(k) covering the open interval (lo-1, hi+1)
+    int fkm2 = 0, fkm1 = 1, fk = 1;
+    while (fk<hi-lo+2)
+    {
+      fkm2 = fkm1;
+      fkm1 = fk;
+      fk = fkm1+fkm2;
+    }
+    int a = lo-1;
+    while (fk>3)
+    {
+      int x1 = a+fkm2;
+      int x2 = a+fkm1;
+      //Points past the end of the range are treated as -Infinity
+      double f1 = x1<=hi?score(scorer, curve, x1):Double.NEGATIVE_INFINITY;
+      double f2 = x2<=hi?score(scorer, curve, x2):Double.NEGATIVE_INFINITY;
+      if (f1<f2)
+        a = x1;
+      //The interval shrinks from F(k) to F(k-1)
+      int f = fkm1;
+      fkm1 = fkm2;
+      fkm2 = f-fkm2;
+      fk = f;
+    }
+    return scan(scorer, curve, Math.max(lo, a+1), Math.min(hi, a+fk-1));
+  }
+
+  /** Count the peaks of the coarse samples, ignoring dips smaller than
+   * {@link #PEAK_TOLERANCE} of their range.
+   * @return true if there is more than one peak
+   */
+  static boolean isMultimodal(double[] curve, int from, int to, int stride)
+  {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int z=from; z<=to; z=next(z, from, to, stride))
+    {
+      min = Math.min(min, curve[z]);
+      max = Math.max(max, curve[z]);
+    }
+    double tolerance = PEAK_TOLERANCE*(max-min);
+    int peaks = 0;
+    boolean rising = true;
+    double extreme = curve[from];
+    for (int z=next(from, from, to, stride); z<=to; z=next(z, from, to, stride))
+    {
+      double v = curve[z];
+      if (rising)
+      {
+        if (v>extreme)
+          extreme = v;
+        else if (v<extreme-tolerance)
+        {
+          peaks++;
+          rising = false;
+          extreme = v;
+        }
+      }
+      else
+      {
+        if (v<extreme)
+          extreme = v;
+        else if (v>extreme+tolerance)
+        {
+          rising = true;
+          extreme = v;
+        }
+      }
+    }
+    if (rising)
+      peaks++;
+    return peaks>1;
+  }
+
+  /** Next coarse sample: every <code>stride</code> planes, then the last plane of the range. */
+  private static int next(int z, int from, int to, int stride)
+  {
+    if (z==to)
+      return to+1;
+    return Math.min(z+stride, to);
+  }
+
+  /** Estimate the fractional position of the peak of the focus curve from the
+   * best plane and its two neighbours.
+   * A {@link #GAUSSIAN} fit is a parabola fitted to the logarithm of the scores,
+   * and falls back to a {@link #PARABOLA} when a score is not positive.
+   * @param curve the focus curve
+   * @param best the index of the best plane
+   * @param fit {@link #PARABOLA} or {@link #GAUSSIAN}
+   * @return the fractional position of the peak, <code>best</code> if it is
+   * on the edge of the curve, a neighbour is not scored or the curve is flat
+   */
+  public static double interpolatePeak(double[] curve, int best, int fit)
+  {
+    if (best<=0 || best>=curve.length-1)
+      return best;
+    double a = curve[best-1];
+    double b = curve[best];
+    double c = curve[best+1];
+    if (Double.isNaN(a) || Double.isNaN(c))
+      return best;
+    if (fit==GAUSSIAN && a>0 && b>0 && c>0)
+    {
+      a = Math.log(a);
+      b = Math.log(b);
+      c = Math.log(c);
+    }
+    double curvature = a-2*b+c;
+    if (!(curvature<0))
+      return best;
+    double offset = 0.5*(a-c)/curvature;
+    return best+Math.max(-0.5, Math.min(0.5, offset));
+  }
+}
@@ -0,0 +1,73 @@
+package be.vib.autofocus;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+/**<p>
+ * Checks that the row-buffered Sobel kernels selected by
+ * {@link FocusMeasure#setVectorized(boolean)} agree with the streaming scalar
+ * ones, for the Tenengrad and Tenengrad variance measures, on 8, 16 and
+ * 32-bit planes and on full-plane, 3-pixel-wide and single-row ROIs.</p>
+ *
+ * <p>
+ * The project has no test framework: run it with ImageJ on the classpath,
+ * it exits with status 1 and lists the mismatches if any.</p>
+ */
+public class SobelKernelsTest
+{
+  /** Maximum relative difference between the two kernels */
+  static final double TOLERANCE = 1e-6;
+
+  public static void main(String[] args)
+  {
+    int width = 131;
+    int height = 97;
+    Random random = new Random(42);
+    ImageProcessor[] planes = {
+        new ByteProcessor(width, height), new ShortProcessor(width, height), new FloatProcessor(width, height)};
+    for (ImageProcessor ip : planes)
+      for (int i=0; i<width*height; i++)
+        ip.setf(i, ip instanceof ByteProcessor ? random.nextInt(256)
+            : ip instanceof ShortProcessor ? random.nextInt(65536) : (float)(1000*random.nextGaussian()));
+    Rectangle[] rois = {
+        new Rectangle(0, 0, width, height), new Rectangle(17, 5, 3, 60), new Rectangle(4, 33, 100, 1)};
+    String[] roiNames = {"full plane", "3-pixel-wide", "single row"};
+
+    boolean saved = FocusMeasure.isVectorized();
+    int failures = 0;
+    for (ImageProcessor ip : planes)
+      for (int r=0; r<rois.length; r++)
+      {
+        ip.setRoi(rois[r]);
+        double[] scalar = measure(ip, false);
+        double[] vector = measure(ip, true);
+        for (int m=0; m<scalar.length; m++)
+        {
+          double error = Math.abs(vector[m]-scalar[m])/Math.max(Math.abs(scalar[m]), Double.MIN_NORMAL);
+          if (error>TOLERANCE)
+          {
+            failures++;
+            System.out.println("FAIL "+ip.getBitDepth()+"-bit, "+roiNames[r]+", "+FocusMeasure.METHODS[m]
+                +": scalar "+scalar[m]+", vectorized "+vector[m]+", relative error "+error);
+          }
+        }
+      }
+    FocusMeasure.setVectorized(saved);
+    if (failures>0)
+      System.exit(1);
+    System.out.println("Sobel kernels agree within "+TOLERANCE);
+  }
+
+  /** @return the Tenengrad and Tenengrad variance of the ROI with one of the kernels */
+  private static double[] measure(ImageProcessor ip, boolean vectorized)
+  {
+    FocusMeasure.setVectorized(vectorized);
+    return new double[] {
+        FocusMeasure.getDegreeOfFocusUsingTenengrad(ip), FocusMeasure.getDegreeOfFocusUsingTenengradVariance(ip)};
+  }
+}